@@ -0,0 +1,206 @@
+package chatservidor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acepta las conexiones de los clientes.
+ *
+ * El hilo aceptador solo aplica las opciones del socket, revisa los límites y
+ * lanza el {@link HiloCliente}; la creación de los streams y la espera de la
+ * SOLICITUD_CONEXION ocurren en el hilo del cliente, así un cliente lento no
+ * frena a los demás. Si se supera el máximo de conexiones o de handshakes en
+ * curso la conexión se rechaza de inmediato.
+ *
+ * Configuración (propiedades del sistema, todas opcionales):
+ * <pre>
+ *   chat.aceptador.backlog     cola de conexiones pendientes del SO (256)
+ *   chat.aceptador.hilos       hilos que aceptan en paralelo (1)
+ *   chat.conexiones.maximo     conexiones simultáneas (10000)
+ *   chat.handshakes.maximo     handshakes simultáneos (64)
+ *   chat.handshake.timeout     ms para recibir la SOLICITUD_CONEXION (10000)
+ *   chat.socket.rcvbuf / chat.socket.sndbuf   bytes, 0 = valor del SO
+ *   chat.socket.nodelay / chat.socket.keepalive   (true)
+ * </pre>
+ */
+public class Aceptador {
+
+    private static final int BACKLOG = Integer.getInteger("chat.aceptador.backlog", 256);
+    private static final int HILOS = Integer.getInteger("chat.aceptador.hilos", 1);
+    private static final int MAXIMO_CONEXIONES = Integer.getInteger("chat.conexiones.maximo", 10000);
+    private static final int MAXIMO_HANDSHAKES = Integer.getInteger("chat.handshakes.maximo", 64);
+    private static final int TIMEOUT_HANDSHAKE = Integer.getInteger("chat.handshake.timeout", 10000);
+    private static final int RCVBUF = Integer.getInteger("chat.socket.rcvbuf", 0);
+    private static final int SNDBUF = Integer.getInteger("chat.socket.sndbuf", 0);
+    private static final boolean NODELAY = Boolean.parseBoolean(System.getProperty("chat.socket.nodelay", "true"));
+    private static final boolean KEEPALIVE = Boolean.parseBoolean(System.getProperty("chat.socket.keepalive", "true"));
+    private static final long ESPERA_ERROR_MIN_MS = 10;
+    private static final long ESPERA_ERROR_MAX_MS = 1000;
+
+    private final int puerto;
+    private final Servidor server;
+    private final AtomicInteger conexiones = new AtomicInteger();
+    private final AtomicInteger handshakes = new AtomicInteger();
+    private final AtomicLong aceptadas = new AtomicLong();
+    private final AtomicLong rechazadas = new AtomicLong();
+    private final MetricasLatencia latenciaHandshake = new MetricasLatencia("Handshake");
+    private ServerSocket serverSocket;
+    private long inicio;
+
+    public Aceptador(int puerto, Servidor server) {
+        this.puerto = puerto;
+        this.server = server;
+    }
+
+    /**
+     * Abre el puerto de escucha con el backlog y buffers configurados
+     */
+    public void abrir() throws IOException {
+        serverSocket = new ServerSocket();
+        if (RCVBUF > 0) {
+            // Debe fijarse antes del bind para que los sockets aceptados lo hereden
+            serverSocket.setReceiveBufferSize(RCVBUF);
+        }
+        serverSocket.bind(new InetSocketAddress(puerto), BACKLOG);
+        inicio = System.nanoTime();
+    }
+
+    /**
+     * Acepta conexiones en el hilo actual y en los hilos adicionales configurados
+     */
+    public void aceptar() {
+        for (int i = 1; i < HILOS; i++) {
+            Thread hilo = new Thread(this::bucleAceptar, "aceptador-" + i);
+            hilo.start();
+        }
+        bucleAceptar();
+    }
+
+    private void bucleAceptar() {
+        long espera = 0;
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                // Los errores repetidos (p.ej. sin descriptores libres) se
+                // espacian para no girar en vacío ni llenar el log
+                espera = espera == 0 ? ESPERA_ERROR_MIN_MS : Math.min(espera * 2, ESPERA_ERROR_MAX_MS);
+                server.agregarLog("Error al aceptar conexión: " + e.getMessage()
+                        + ", reintento en " + espera + " ms");
+                try {
+                    Thread.sleep(espera);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+            espera = 0;
+
+            if (!admitir()) {
+                rechazar(socket);
+                continue;
+            }
+            // Solo las admitidas: las rechazadas se cuentan aparte
+            aceptadas.incrementAndGet();
+
+            try {
+                configurar(socket);
+                HiloCliente h = new HiloCliente(socket, this.server);
+                h.start();
+            } catch (Exception e) {
+                server.agregarLog("No se pudo iniciar el cliente " + socket.getInetAddress() + ": " + e.getMessage());
+                finHandshake(0);
+                conexionCerrada();
+                cerrarSilencioso(socket);
+            }
+        }
+    }
+
+    /**
+     * Reserva un lugar de conexión y de handshake, o devuelve false si no hay
+     */
+    private boolean admitir() {
+        if (conexiones.incrementAndGet() > MAXIMO_CONEXIONES) {
+            conexiones.decrementAndGet();
+            return false;
+        }
+        if (handshakes.incrementAndGet() > MAXIMO_HANDSHAKES) {
+            handshakes.decrementAndGet();
+            conexiones.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void rechazar(Socket socket) {
+        rechazadas.incrementAndGet();
+        try {
+            // Cierre inmediato (RST) para no dejar al cliente esperando
+            socket.setSoLinger(true, 0);
+        } catch (SocketException e) {
+            // Se cierra igual
+        }
+        cerrarSilencioso(socket);
+    }
+
+    private static void configurar(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(NODELAY);
+        socket.setKeepAlive(KEEPALIVE);
+        if (SNDBUF > 0) {
+            socket.setSendBufferSize(SNDBUF);
+        }
+        // Tiempo máximo para el handshake; HiloCliente lo quita al registrarse
+        socket.setSoTimeout(TIMEOUT_HANDSHAKE);
+    }
+
+    private static void cerrarSilencioso(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Libera el lugar de handshake de un cliente y registra cuánto tardó
+     */
+    public void finHandshake(long nanos) {
+        handshakes.decrementAndGet();
+        if (nanos > 0) {
+            latenciaHandshake.registrar(nanos);
+        }
+    }
+
+    /**
+     * Libera el lugar de conexión de un cliente
+     */
+    public void conexionCerrada() {
+        conexiones.decrementAndGet();
+    }
+
+    public void cerrar() throws IOException {
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Resumen de conexiones aceptadas, rechazadas y latencia de handshake
+     */
+    public String getResumenMetricas() {
+        double segundos = (System.nanoTime() - inicio) / 1_000_000_000.0;
+        return String.format("Conexiones: %d activas, %d aceptadas (%.2f/s), %d rechazadas\n%s\n",
+                conexiones.get(), aceptadas.get(), segundos > 0 ? aceptadas.get() / segundos : 0,
+                rechazadas.get(), latenciaHandshake);
+    }
+}
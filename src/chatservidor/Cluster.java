@@ -0,0 +1,592 @@
+package chatservidor;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agrupa varias instancias del servidor en un cluster.
+ *
+ * Cada usuario pertenece a un nodo según un anillo de hash consistente sobre
+ * su identificador; ese nodo guarda su buzón de mensajes offline. Las salas
+ * se reparten igual por su nombre. Cuando un nodo entra o sale, buzones y
+ * salas se mueven a su nuevo propietario; si un nodo se cae sin avisar, los
+ * que guardaba se pierden. Los nodos se
+ * comunican por enlaces persistentes ({@link EnlaceNodo}) y se anuncian la
+ * presencia de sus usuarios para que la lista de conectados sea global.
+ *
+ * Cada enlace manda un latido por segundo. Un nodo entra al anillo cuando su
+ * enlace de salida está conectado y además llegó su HOLA por la conexión de
+ * entrada. Si el lector de un nodo no recibe nada durante
+ * chat.cluster.timeoutLatido ms (3000 por defecto), una escritura hacia él no
+ * avanza en ese plazo, o alguna de las conexiones se corta, el nodo sale del
+ * anillo y su enlace de salida vuelve a conectar.
+ * Los mensajes que seguían en la cola del enlace se re-enrutan con el anillo
+ * nuevo; los que ya se habían escrito en el socket de un nodo que cae se
+ * pierden (la entrega entre nodos es como máximo una vez).
+ *
+ * El puerto del cluster escucha solo en la dirección configurada para el nodo
+ * local, y una conexión entrante se acepta solo si empieza con el HOLA de otro
+ * nodo configurado y viene de su dirección. No hay autenticación más allá de
+ * eso: el puerto no debe quedar expuesto fuera de la red de los nodos.
+ *
+ * Se configura con propiedades del sistema, por ejemplo:
+ * <pre>
+ *   -Dchat.cluster.nodo=A
+ *   -Dchat.cluster.nodos=A=127.0.0.1:20101,B=127.0.0.1:20102,C=127.0.0.1:20103
+ * </pre>
+ */
+public class Cluster {
+
+    static final int MAX_SALTOS = 2;
+    private static final int TIMEOUT_LATIDO_MS = Integer.getInteger("chat.cluster.timeoutLatido",
+            3 * EnlaceNodo.INTERVALO_LATIDO_MS);
+    private static final int NODOS_VIRTUALES = 64;
+
+    private final Servidor server;
+    private final String nodoLocal;
+    private final Map<String, InetSocketAddress> direcciones;
+    private final Map<String, EnlaceNodo> enlaces = new ConcurrentHashMap<>();
+    private final Set<String> nodosActivos = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> usuariosRemotos = new ConcurrentHashMap<>(); // usuario -> nodo
+    private final Map<String, Socket> entrantes = new ConcurrentHashMap<>(); // nodo -> conexión de lectura
+    private volatile TreeMap<Integer, String> anillo;
+    private volatile boolean saliendo;
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService vigilante;
+
+    private Cluster(Servidor server, String nodoLocal, Map<String, InetSocketAddress> direcciones) {
+        this.server = server;
+        this.nodoLocal = nodoLocal;
+        this.direcciones = direcciones;
+        reconstruirAnillo();
+    }
+
+    /**
+     * Crea el cluster a partir de las propiedades del sistema, o devuelve null
+     * si el servidor corre como nodo único
+     */
+    public static Cluster desdeConfiguracion(Servidor server) {
+        String nodo = System.getProperty("chat.cluster.nodo");
+        String nodos = System.getProperty("chat.cluster.nodos");
+        if (nodo == null || nodos == null) {
+            return null;
+        }
+
+        Map<String, InetSocketAddress> direcciones = new LinkedHashMap<>();
+        for (String entrada : nodos.split(",")) {
+            String[] partes = entrada.trim().split("=", 2);
+            int separador = partes[1].lastIndexOf(':');
+            direcciones.put(partes[0], new InetSocketAddress(
+                    partes[1].substring(0, separador),
+                    Integer.parseInt(partes[1].substring(separador + 1))));
+        }
+        if (!direcciones.containsKey(nodo)) {
+            throw new IllegalArgumentException("El nodo " + nodo + " no aparece en chat.cluster.nodos");
+        }
+        return new Cluster(server, nodo, direcciones);
+    }
+
+    /**
+     * Abre el puerto entre nodos y empieza a conectar con el resto
+     */
+    public void iniciar() throws IOException {
+        // Solo en la dirección configurada para este nodo, no en todas las interfaces
+        serverSocket = new ServerSocket();
+        serverSocket.bind(direcciones.get(nodoLocal));
+        Thread aceptador = new Thread(this::aceptarNodos, "cluster-aceptador");
+        aceptador.setDaemon(true);
+        aceptador.start();
+
+        direcciones.forEach((nodo, direccion) -> {
+            if (!nodo.equals(nodoLocal)) {
+                EnlaceNodo enlace = new EnlaceNodo(nodo, direccion, this);
+                enlaces.put(nodo, enlace);
+                enlace.start();
+            }
+        });
+
+        // Las escrituras en un socket no tienen timeout: se cortan desde aquí
+        vigilante = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cluster-vigilante");
+            t.setDaemon(true);
+            return t;
+        });
+        vigilante.scheduleWithFixedDelay(this::vigilarEscrituras,
+                EnlaceNodo.INTERVALO_LATIDO_MS, EnlaceNodo.INTERVALO_LATIDO_MS, TimeUnit.MILLISECONDS);
+        server.agregarLog("Nodo " + nodoLocal + " del cluster escuchando en puerto: " + serverSocket.getLocalPort());
+    }
+
+    private void aceptarNodos() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread lector = new Thread(() -> leerNodo(socket), "cluster-lector");
+                lector.setDaemon(true);
+                lector.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    server.agregarLog("Error aceptando nodo del cluster: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void leerNodo(Socket socket) {
+        String nodo = null;
+        try (Socket s = socket;
+                ObjectInputStream entrada = new ObjectInputStream(new BufferedInputStream(s.getInputStream()))) {
+            // El otro nodo manda un lote (aunque sea vacío) por segundo
+            s.setSoTimeout(TIMEOUT_LATIDO_MS);
+            while (true) {
+                Object aux = entrada.readObject();
+                if (aux instanceof LinkedList) {
+                    for (LinkedList<String> frame : (LinkedList<LinkedList<String>>) aux) {
+                        if (nodo == null) {
+                            // Lo primero tiene que ser el HOLA de un nodo configurado
+                            nodo = identificar(s, frame);
+                            if (nodo == null) {
+                                return;
+                            }
+                            Socket anterior = entrantes.put(nodo, s);
+                            cerrarSilencioso(anterior);
+                            verificarNodo(nodo);
+                        } else {
+                            procesarSeguro(nodo, frame);
+                        }
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            if (nodo != null && !saliendo) {
+                server.agregarLog("Sin latidos del nodo " + nodo + " en " + TIMEOUT_LATIDO_MS + " ms");
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // El nodo remoto cerró el enlace o se cayó
+        } catch (RuntimeException e) {
+            server.agregarLog("Lote inválido del nodo " + nodo + ": " + e);
+        } finally {
+            if (nodo != null && entrantes.remove(nodo, socket)) {
+                nodoCaido(nodo);
+            }
+        }
+    }
+
+    /**
+     * Valida el HOLA con que empieza una conexión entrante: tiene que nombrar
+     * a otro nodo de chat.cluster.nodos y venir de su dirección. Devuelve el
+     * nodo, o null si la conexión se rechaza.
+     */
+    private String identificar(Socket socket, LinkedList<String> frame) {
+        String nodo = frame.size() == 2 && "HOLA".equals(frame.get(0)) ? frame.get(1) : null;
+        InetSocketAddress configurada = nodo != null && !nodo.equals(nodoLocal) ? direcciones.get(nodo) : null;
+        InetAddress origen = socket.getInetAddress();
+        boolean valida = configurada != null && (configurada.isUnresolved()
+                || configurada.getAddress().equals(origen)
+                || (configurada.getAddress().isLoopbackAddress() && origen.isLoopbackAddress()));
+        if (!valida) {
+            server.agregarLog("Conexión de cluster rechazada desde " + origen
+                    + (nodo != null ? " (se presentó como " + nodo + ")" : " (sin HOLA)"));
+            return null;
+        }
+        return nodo;
+    }
+
+    /**
+     * Un nodo solo puede anunciar su propia presencia y su propia salida
+     */
+    private static boolean suplanta(String nodo, LinkedList<String> frame) {
+        String tipo = frame.get(0);
+        return ("PRESENCIA".equals(tipo) || "SALIDA".equals(tipo)) && !nodo.equals(frame.get(1));
+    }
+
+    /**
+     * Procesa un mensaje de otro nodo sin dejar que un error en el manejo
+     * (p.ej. un mensaje mal formado) termine el lector del enlace
+     */
+    private void procesarSeguro(String nodo, LinkedList<String> frame) {
+        try {
+            if (suplanta(nodo, frame)) {
+                server.agregarLog("El nodo " + nodo + " envió " + frame.get(0)
+                        + " a nombre de " + frame.get(1) + ", se descarta");
+                return;
+            }
+            procesar(frame);
+        } catch (RuntimeException e) {
+            server.agregarLog("Error procesando " + (frame.isEmpty() ? "mensaje vacío" : frame.get(0))
+                    + " del nodo " + nodo + ": " + e);
+        }
+    }
+
+    /**
+     * Corta los enlaces cuya escritura lleva más del plazo de latidos sin
+     * avanzar; el enlace avisa la caída y vuelve a conectar
+     */
+    private void vigilarEscrituras() {
+        for (EnlaceNodo enlace : enlaces.values()) {
+            if (enlace.escrituraVencida(TIMEOUT_LATIDO_MS)) {
+                server.agregarLog("El nodo " + enlace.getNodo() + " no lee hace "
+                        + TIMEOUT_LATIDO_MS + " ms, se corta el enlace");
+                enlace.reiniciar();
+            }
+        }
+    }
+
+    /**
+     * El nodo dejó de mandar latidos o cortó su enlace: sale del anillo y el
+     * enlace de salida vuelve a conectar; vuelve a entrar solo si además
+     * llega un HOLA nuevo por la entrada
+     */
+    private void nodoCaido(String nodo) {
+        if (saliendo) {
+            return;
+        }
+        nodoDesconectado(nodo);
+        EnlaceNodo enlace = enlaces.get(nodo);
+        if (enlace != null) {
+            enlace.reiniciar();
+        }
+    }
+
+    private static void cerrarSilencioso(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ya no se usa
+            }
+        }
+    }
+
+    /**
+     * Procesa un mensaje recibido de otro nodo
+     */
+    void procesar(LinkedList<String> frame) {
+        switch (frame.get(0)) {
+            case "PRESENCIA": {
+                String nodo = frame.get(1);
+                String usuario = frame.get(2);
+                if ("CONECTADO".equals(frame.get(3))) {
+                    usuariosRemotos.put(usuario, nodo);
+                    server.notificarCambioEstado(usuario, "NUEVO_USUARIO_CONECTADO");
+                    // Si guardamos su buzón, se lo entregamos al nodo donde se conectó
+                    LinkedList<String> buzon = server.getMensajesOffline().remove(usuario);
+                    if (buzon != null) {
+                        enviarBuzon(nodo, usuario, buzon);
+                    }
+                } else if (usuariosRemotos.remove(usuario, nodo)) {
+                    server.notificarCambioEstado(usuario, "USUARIO_DESCONECTADO");
+                }
+                break;
+            }
+            case "ENTREGAR": {
+                int saltos = Integer.parseInt(frame.get(1));
+                String receptor = frame.get(2);
+                LinkedList<String> mensaje = new LinkedList<>(frame.subList(3, frame.size()));
+                server.enrutarFrame(receptor, mensaje, saltos);
+                break;
+            }
+            case "DIFUNDIR": {
+                int cantidad = Integer.parseInt(frame.get(1));
+                LinkedList<String> mensaje = new LinkedList<>(frame.subList(2 + cantidad, frame.size()));
+                for (String receptor : frame.subList(2, 2 + cantidad)) {
+                    server.enrutarFrame(receptor, mensaje, MAX_SALTOS - 1);
+                }
+                break;
+            }
+            case "SALA": {
+                int saltos = Integer.parseInt(frame.get(1));
+                server.getSalas().procesarComando(new LinkedList<>(frame.subList(2, frame.size())), saltos);
+                break;
+            }
+            case "BUZON":
+                server.recibirBuzon(frame.get(1), new LinkedList<>(frame.subList(2, frame.size())));
+                break;
+            case "SALA_MIEMBROS":
+                server.getSalas().recibirSala(frame.get(1), frame.subList(2, frame.size()));
+                break;
+            case "SALIDA":
+                nodoDesconectado(frame.get(1));
+                break;
+            default:
+                server.agregarLog("Mensaje de cluster no reconocido: " + frame.get(0));
+                break;
+        }
+    }
+
+    /**
+     * Llamado por el enlace cuando logra conectar con un nodo
+     */
+    void enlaceConectado(String nodo) {
+        verificarNodo(nodo);
+    }
+
+    /**
+     * Incorpora el nodo al anillo si su enlace de salida está conectado y su
+     * HOLA llegó por la conexión de entrada
+     */
+    private void verificarNodo(String nodo) {
+        EnlaceNodo enlace = enlaces.get(nodo);
+        if (!saliendo && enlace != null && enlace.estaConectado() && entrantes.containsKey(nodo)
+                && nodosActivos.add(nodo)) {
+            nodoConectado(nodo, enlace);
+        }
+    }
+
+    private void nodoConectado(String nodo, EnlaceNodo enlace) {
+        reconstruirAnillo();
+        server.agregarLog("Nodo " + nodo + " se unió al cluster");
+
+        // Anunciar al nuevo nodo los usuarios conectados aquí
+        for (HiloCliente cliente : server.getClientesLocales()) {
+            if (cliente.getIdentificador() != null) {
+                enlace.enviar(presencia(cliente.getIdentificador(), true));
+            }
+        }
+        server.rebalancearBuzones();
+        server.getSalas().rebalancear();
+    }
+
+    /**
+     * Llamado cuando se pierde el enlace con un nodo o este anuncia su salida
+     */
+    void nodoDesconectado(String nodo) {
+        boolean estaba = nodosActivos.remove(nodo);
+        if (estaba) {
+            reconstruirAnillo();
+            server.agregarLog("Nodo " + nodo + " salió del cluster");
+
+            usuariosRemotos.entrySet().removeIf(e -> {
+                if (e.getValue().equals(nodo)) {
+                    server.notificarCambioEstado(e.getKey(), "USUARIO_DESCONECTADO");
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        // Lo que no alcanzó a salir hacia ese nodo se vuelve a enrutar con el
+        // anillo nuevo (también si el nodo todavía no había entrado al anillo)
+        EnlaceNodo enlace = enlaces.get(nodo);
+        if (enlace != null) {
+            enlace.drenar().forEach(this::reenrutarLocal);
+        }
+        if (estaba) {
+            server.rebalancearBuzones();
+            server.getSalas().rebalancear();
+        }
+    }
+
+    /**
+     * Vuelve a procesar aquí un mensaje que no se pudo enviar a otro nodo. La
+     * presencia no se reenruta: el nodo recibe la actual al volver a entrar.
+     * ENTREGAR y SALA suman un salto en cada reenvío, así que un nodo que
+     * sigue en el anillo pero no acepta mensajes termina en el buzón local.
+     */
+    private void reenrutarLocal(LinkedList<String> frame) {
+        if (!"PRESENCIA".equals(frame.get(0)) && !"SALIDA".equals(frame.get(0))) {
+            procesar(frame);
+        }
+    }
+
+    private void reconstruirAnillo() {
+        TreeMap<Integer, String> nuevo = new TreeMap<>();
+        for (String nodo : direcciones.keySet()) {
+            boolean participa = nodo.equals(nodoLocal) ? !saliendo : nodosActivos.contains(nodo);
+            if (participa) {
+                for (int i = 0; i < NODOS_VIRTUALES; i++) {
+                    nuevo.put(hash(nodo + "#" + i), nodo);
+                }
+            }
+        }
+        anillo = nuevo;
+    }
+
+    /**
+     * Nodo dueño del buzón de un usuario
+     */
+    public String propietario(String usuario) {
+        TreeMap<Integer, String> actual = anillo;
+        if (actual.isEmpty()) {
+            return nodoLocal;
+        }
+        Map.Entry<Integer, String> entrada = actual.ceilingEntry(hash(usuario));
+        return entrada != null ? entrada.getValue() : actual.firstEntry().getValue();
+    }
+
+    public boolean esLocal(String nodo) {
+        return nodoLocal.equals(nodo);
+    }
+
+    /**
+     * Nodo remoto donde está conectado un usuario, o null si no está en otro nodo
+     */
+    public String nodoDeUsuario(String usuario) {
+        return usuariosRemotos.get(usuario);
+    }
+
+    /**
+     * Nodo remoto al que hay que enviar lo dirigido a un usuario que no está
+     * conectado aquí, o null si le corresponde al buzón local
+     */
+    public String destinoDe(String usuario) {
+        String nodo = usuariosRemotos.get(usuario);
+        if (nodo != null) {
+            return nodo;
+        }
+        String propietario = propietario(usuario);
+        return esLocal(propietario) ? null : propietario;
+    }
+
+    public Collection<String> getUsuariosRemotos() {
+        return usuariosRemotos.keySet();
+    }
+
+    /**
+     * Reenvía un mensaje para un usuario a otro nodo
+     */
+    public void reenviar(String nodo, String receptor, LinkedList<String> mensaje, int saltos) {
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("ENTREGAR");
+        frame.add(String.valueOf(saltos));
+        frame.add(receptor);
+        frame.addAll(mensaje);
+        enviarANodo(nodo, frame);
+    }
+
+    /**
+     * Envía un mismo mensaje a varios usuarios de otro nodo en un solo reenvío
+     */
+    public void difundir(String nodo, List<String> receptores, LinkedList<String> mensaje) {
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("DIFUNDIR");
+        frame.add(String.valueOf(receptores.size()));
+        frame.addAll(receptores);
+        frame.addAll(mensaje);
+        enviarANodo(nodo, frame);
+    }
+
+    /**
+     * Reenvía un comando de sala al nodo propietario de la sala
+     */
+    public void reenviarComandoSala(String nodo, LinkedList<String> comando, int saltos) {
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("SALA");
+        frame.add(String.valueOf(saltos));
+        frame.addAll(comando);
+        enviarANodo(nodo, frame);
+    }
+
+    /**
+     * Transfiere el buzón offline de un usuario a otro nodo
+     */
+    public void enviarBuzon(String nodo, String usuario, LinkedList<String> entradas) {
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("BUZON");
+        frame.add(usuario);
+        frame.addAll(entradas);
+        enviarANodo(nodo, frame);
+    }
+
+    /**
+     * Transfiere los miembros de una sala a su nuevo nodo propietario
+     */
+    public void enviarSala(String nodo, String sala, Collection<String> miembros) {
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("SALA_MIEMBROS");
+        frame.add(sala);
+        frame.addAll(miembros);
+        enviarANodo(nodo, frame);
+    }
+
+    /**
+     * Anuncia a todos los nodos que un usuario local se conectó o desconectó
+     */
+    public void publicarPresencia(String usuario, boolean conectado) {
+        // Solo a los nodos del anillo: los demás la reciben completa al entrar
+        LinkedList<String> frame = presencia(usuario, conectado);
+        for (String nodo : nodosActivos) {
+            enviarANodo(nodo, frame);
+        }
+    }
+
+    private LinkedList<String> presencia(String usuario, boolean conectado) {
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("PRESENCIA");
+        frame.add(nodoLocal);
+        frame.add(usuario);
+        frame.add(conectado ? "CONECTADO" : "DESCONECTADO");
+        return frame;
+    }
+
+    private void enviarANodo(String nodo, LinkedList<String> frame) {
+        EnlaceNodo enlace = enlaces.get(nodo);
+        if (enlace == null || !enlace.enviar(frame)) {
+            reenrutarLocal(frame);
+        }
+    }
+
+    /**
+     * Retira este nodo del cluster: reparte sus buzones entre los demás nodos
+     * y cierra los enlaces
+     */
+    public void salir() {
+        saliendo = true;
+        reconstruirAnillo();
+        server.rebalancearBuzones();
+        server.getSalas().rebalancear();
+
+        LinkedList<String> salida = new LinkedList<>();
+        salida.add("SALIDA");
+        salida.add(nodoLocal);
+        enlaces.values().forEach(enlace -> enlace.enviar(salida));
+        enlaces.values().forEach(enlace -> enlace.cerrar(2000));
+        if (vigilante != null) {
+            vigilante.shutdownNow();
+        }
+
+        entrantes.values().forEach(Cluster::cerrarSilencioso);
+
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el puerto del cluster: " + e.getMessage());
+        }
+    }
+
+    public String getNodoLocal() {
+        return nodoLocal;
+    }
+
+    /**
+     * Hash de 32 bits con buena dispersión; String.hashCode es igual en todas las JVM
+     */
+    private static int hash(String clave) {
+        int h = clave.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
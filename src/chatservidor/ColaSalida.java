@@ -0,0 +1,255 @@
+package chatservidor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Cola de salida de un cliente con tres clases de prioridad.
+ *
+ * Los mensajes de control (PONG, confirmaciones, presencia) siempre salen
+ * primero, por lo que esperan como máximo la escritura del mensaje en curso.
+ * Entre los mensajes de chat interactivos y el tráfico masivo (mensajes
+ * offline, listas de usuarios) se reparte con pesos para que el tráfico masivo
+ * no quede bloqueado indefinidamente.
+ *
+ * El buzón offline se guarda aparte, como entradas sin convertir, y no cuenta
+ * para el límite de pendientes: cada entrada se convierte en mensaje recién
+ * cuando el escritor la toma, así un historial grande no se confunde con un
+ * cliente lento. Lo que no llega a escribirse se devuelve con
+ * {@link #retirarBuzon()}.
+ */
+public class ColaSalida {
+
+    public enum Clase {
+        CONTROL, INTERACTIVO, MASIVO
+    }
+
+    // Mensajes interactivos que pueden salir seguidos antes de ceder uno masivo
+    private static final int PESO_INTERACTIVO = Integer.getInteger("chat.salida.pesoInteractivo", 4);
+    private static final int LIMITE_PENDIENTES = Integer.getInteger("chat.salida.limite", 10000);
+
+    private static final MetricasLatencia[] METRICAS = {
+        new MetricasLatencia("Control"),
+        new MetricasLatencia("Interactivo"),
+        new MetricasLatencia("Masivo")
+    };
+
+    private final ArrayDeque<Pendiente>[] colas;
+    private final ArrayDeque<EntradaBuzon> buzon = new ArrayDeque<>();
+    private Function<String, LinkedList<String>> convertirEntrada;
+    private int interactivosSeguidos;
+    private int pendientes;
+    private boolean cerrada;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ColaSalida() {
+        colas = new ArrayDeque[Clase.values().length];
+        for (int i = 0; i < colas.length; i++) {
+            colas[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Clasifica un mensaje según su tipo
+     */
+    public static Clase clasificar(LinkedList<String> lista) {
+        switch (lista.getFirst()) {
+            case "MENSAJE":
+            case "MENSAJE_GRUPO":
+                return Clase.INTERACTIVO;
+            case "USUARIOS_ONLINE":
+                return Clase.MASIVO;
+            default:
+                return Clase.CONTROL;
+        }
+    }
+
+    /**
+     * Encola un mensaje. Devuelve false si la cola está cerrada o el cliente
+     * acumula demasiados mensajes sin leer.
+     */
+    public synchronized boolean encolar(LinkedList<String> lista, Clase clase) {
+        return encolar(lista, clase, null);
+    }
+
+    /**
+     * Encola un mensaje que lleva una traza para completar al escribirlo
+     */
+    public synchronized boolean encolar(LinkedList<String> lista, Clase clase, Trazador.Traza traza) {
+        if (cerrada || pendientes >= LIMITE_PENDIENTES) {
+            return false;
+        }
+        colas[clase.ordinal()].addLast(new Pendiente(lista, clase, traza));
+        pendientes++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Agrega entradas del buzón offline, que se convierten en mensajes masivos
+     * a medida que el escritor las toma. Devuelve false si la cola ya está
+     * cerrada; en ese caso las entradas siguen siendo del llamador.
+     */
+    public synchronized boolean agregarBuzon(Collection<String> entradas,
+            Function<String, LinkedList<String>> convertir) {
+        if (cerrada) {
+            return false;
+        }
+        convertirEntrada = convertir;
+        long ahora = System.nanoTime();
+        for (String entrada : entradas) {
+            buzon.addLast(new EntradaBuzon(entrada, ahora));
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Retira las entradas del buzón que todavía no se escribieron
+     */
+    public synchronized List<String> retirarBuzon() {
+        List<String> restantes = new ArrayList<>(buzon.size());
+        for (EntradaBuzon e : buzon) {
+            restantes.add(e.entrada);
+        }
+        buzon.clear();
+        return restantes;
+    }
+
+    /**
+     * Espera y devuelve el siguiente mensaje a escribir, o null si la cola se
+     * cerró y ya no quedan mensajes. Con la cola cerrada el buzón ya no se
+     * entrega: queda para {@link #retirarBuzon()}.
+     */
+    public synchronized Pendiente tomar() throws InterruptedException {
+        ArrayDeque<Pendiente> control = colas[Clase.CONTROL.ordinal()];
+        ArrayDeque<Pendiente> interactivo = colas[Clase.INTERACTIVO.ordinal()];
+        ArrayDeque<Pendiente> masivo = colas[Clase.MASIVO.ordinal()];
+
+        while (true) {
+            while (estaVacia()) {
+                if (cerrada) {
+                    return null;
+                }
+                wait();
+            }
+
+            boolean hayMasivo = !masivo.isEmpty() || (!cerrada && !buzon.isEmpty());
+            if (!control.isEmpty()) {
+                pendientes--;
+                return control.pollFirst();
+            }
+            if (!interactivo.isEmpty() && (!hayMasivo || interactivosSeguidos < PESO_INTERACTIVO)) {
+                interactivosSeguidos++;
+                pendientes--;
+                return interactivo.pollFirst();
+            }
+            interactivosSeguidos = 0;
+            if (!masivo.isEmpty()) {
+                pendientes--;
+                return masivo.pollFirst();
+            }
+            EntradaBuzon entrada = buzon.pollFirst();
+            LinkedList<String> lista = convertirEntrada.apply(entrada.entrada);
+            if (lista != null) {
+                // La latencia se mide desde que la entrada llegó a la cola, no desde la conversión
+                return new Pendiente(lista, Clase.MASIVO, null, entrada.entrada, entrada.encolado);
+            }
+            // Entrada con formato inválido: se descarta y se sigue con la próxima
+        }
+    }
+
+    /**
+     * Indica si no queda nada por escribir; con la cola cerrada no se cuenta
+     * el buzón, que ya no se entrega
+     */
+    public synchronized boolean estaVacia() {
+        return pendientes == 0 && (cerrada || buzon.isEmpty());
+    }
+
+    /**
+     * Cierra la cola; los mensajes ya encolados se siguen entregando
+     */
+    public synchronized void cerrar() {
+        cerrada = true;
+        notifyAll();
+    }
+
+    /**
+     * Resumen de latencias de encolado a escritura por clase
+     */
+    public static String getResumenMetricas() {
+        StringBuilder sb = new StringBuilder();
+        for (MetricasLatencia m : METRICAS) {
+            sb.append(m).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Entrada del buzón offline con el instante en que llegó a la cola
+     */
+    private static class EntradaBuzon {
+
+        final String entrada;
+        final long encolado;
+
+        EntradaBuzon(String entrada, long encolado) {
+            this.entrada = entrada;
+            this.encolado = encolado;
+        }
+    }
+
+    /**
+     * Mensaje en espera de ser escrito en el socket
+     */
+    public static class Pendiente {
+
+        private final LinkedList<String> lista;
+        private final Clase clase;
+        private final long encolado;
+        private final Trazador.Traza traza;
+        private final String entradaBuzon;
+
+        Pendiente(LinkedList<String> lista, Clase clase, Trazador.Traza traza) {
+            this(lista, clase, traza, null, System.nanoTime());
+        }
+
+        Pendiente(LinkedList<String> lista, Clase clase, Trazador.Traza traza, String entradaBuzon, long encolado) {
+            this.lista = lista;
+            this.clase = clase;
+            this.traza = traza;
+            this.entradaBuzon = entradaBuzon;
+            this.encolado = encolado;
+        }
+
+        public LinkedList<String> getLista() {
+            return lista;
+        }
+
+        public Clase getClase() {
+            return clase;
+        }
+
+        /**
+         * Entrada del buzón offline de la que salió el mensaje, o null
+         */
+        public String getEntradaBuzon() {
+            return entradaBuzon;
+        }
+
+        /**
+         * Registra la latencia desde el encolado hasta la escritura
+         */
+        void registrarEscrito() {
+            METRICAS[clase.ordinal()].registrar(System.nanoTime() - encolado);
+            if (traza != null) {
+                traza.escrito();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package chatservidor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión por mensaje (deflate) negociada con cada cliente.
+ *
+ * Un mensaje comprimido viaja como byte[] en lugar de LinkedList: la lista se
+ * codifica como cantidad de elementos (int) seguida de cada texto en UTF-8
+ * (largo int + bytes) y el resultado se comprime. Solo se comprimen mensajes
+ * por encima del umbral, y si la relación obtenida es mala la compresión se
+ * suspende por un tiempo para no gastar CPU en vano.
+ *
+ * Cada conexión tiene su propio Deflater/Inflater, que se reutilizan entre
+ * mensajes. Opcionalmente se usa un diccionario con las palabras del protocolo,
+ * que el cliente debe conocer (ver {@link #DICCIONARIO}).
+ */
+public class CompresorFrames {
+
+    public static final byte[] DICCIONARIO = ("MENSAJE_NO_ENTREGADO MENSAJE_GRUPO MENSAJE "
+            + "USUARIOS_ONLINE CONEXION_ACEPTADA NUEVO_USUARIO_CONECTADO USUARIO_DESCONECTADO "
+            + "CAMBIO_ESTADO CONTACTO_AGREGADO SERVIDOR_CERRANDO ADJUNTO: online offline ocupado")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final int UMBRAL = Integer.getInteger("chat.compresion.umbral", 512);
+    // Por encima de esta relación (comprimido/original) no vale la pena comprimir
+    private static final double RELACION_MAXIMA = 0.9;
+    private static final int MENSAJES_SUSPENDIDA = 256;
+    private static final int MAXIMO_DESCOMPRIMIDO = 16 * 1024 * 1024;
+
+    private static final AtomicLong BYTES_ORIGINALES = new AtomicLong();
+    private static final AtomicLong BYTES_COMPRIMIDOS = new AtomicLong();
+    private static final AtomicLong NANOS_COMPRESION = new AtomicLong();
+    private static final AtomicLong MENSAJES_COMPRIMIDOS = new AtomicLong();
+    private static final AtomicLong MENSAJES_DESCARTADOS = new AtomicLong();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private final ByteArrayOutputStream codificado = new ByteArrayOutputStream();
+    private final byte[] bloque = new byte[8192];
+    private volatile boolean activa;
+    private volatile boolean aceptaComprimidos;
+    private volatile boolean conDiccionario;
+    private double relacionPromedio = 0.5;
+    private int suspendidaPor;
+
+    /**
+     * Acepta mensajes comprimidos del cliente; lo llama el hilo lector al
+     * recibir SOLICITAR_COMPRESION
+     */
+    public void aceptarComprimidos() {
+        this.aceptaComprimidos = true;
+    }
+
+    /**
+     * Activa la compresión de lo que se envía. Lo llama el hilo escritor
+     * después de escribir COMPRESION_ACEPTADA, así ningún mensaje comprimido
+     * llega al cliente antes de la confirmación.
+     */
+    public void activar(boolean conDiccionario) {
+        this.conDiccionario = conDiccionario;
+        this.activa = true;
+    }
+
+    public boolean estaActiva() {
+        return activa;
+    }
+
+    public boolean aceptaComprimidos() {
+        return aceptaComprimidos;
+    }
+
+    public static int getUmbral() {
+        return UMBRAL;
+    }
+
+    /**
+     * Comprime un mensaje si conviene. Devuelve null si el mensaje debe
+     * enviarse sin comprimir. Solo lo llama el hilo escritor de la conexión.
+     */
+    public byte[] comprimir(LinkedList<String> lista) {
+        if (!activa || tamanoEstimado(lista) < UMBRAL) {
+            return null;
+        }
+        if (suspendidaPor > 0) {
+            suspendidaPor--;
+            return null;
+        }
+
+        long inicio = System.nanoTime();
+        byte[] original = codificar(lista);
+
+        deflater.reset();
+        if (conDiccionario) {
+            deflater.setDictionary(DICCIONARIO);
+        }
+        deflater.setInput(original);
+        deflater.finish();
+
+        ByteArrayOutputStream salida = new ByteArrayOutputStream(original.length / 2 + 16);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(bloque);
+            salida.write(bloque, 0, n);
+        }
+        byte[] comprimido = salida.toByteArray();
+        NANOS_COMPRESION.addAndGet(System.nanoTime() - inicio);
+
+        double relacion = comprimido.length / (double) original.length;
+        relacionPromedio = relacionPromedio * 0.75 + relacion * 0.25;
+        if (relacionPromedio > RELACION_MAXIMA) {
+            // Contenido poco comprimible (p.ej. ya comprimido): pausar y volver a probar después
+            suspendidaPor = MENSAJES_SUSPENDIDA;
+            relacionPromedio = 0.5;
+        }
+
+        if (relacion >= 1.0) {
+            MENSAJES_DESCARTADOS.incrementAndGet();
+            return null;
+        }
+        BYTES_ORIGINALES.addAndGet(original.length);
+        BYTES_COMPRIMIDOS.addAndGet(comprimido.length);
+        MENSAJES_COMPRIMIDOS.incrementAndGet();
+        return comprimido;
+    }
+
+    /**
+     * Descomprime un mensaje recibido del cliente. Solo lo llama el hilo lector
+     * de la conexión.
+     */
+    public LinkedList<String> descomprimir(byte[] datos) throws IOException {
+        inflater.reset();
+        inflater.setInput(datos);
+        ByteArrayOutputStream salida = new ByteArrayOutputStream(datos.length * 3);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(DICCIONARIO);
+                } else if (n == 0 && !inflater.finished()) {
+                    throw new IOException("Mensaje comprimido incompleto");
+                }
+                salida.write(buffer, 0, n);
+                if (salida.size() > MAXIMO_DESCOMPRIMIDO) {
+                    throw new IOException("Mensaje comprimido demasiado grande");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Mensaje comprimido inválido: " + e.getMessage(), e);
+        }
+        return decodificar(salida.toByteArray());
+    }
+
+    private byte[] codificar(LinkedList<String> lista) {
+        codificado.reset();
+        try {
+            DataOutputStream out = new DataOutputStream(codificado);
+            out.writeInt(lista.size());
+            for (String texto : lista) {
+                byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream no lanza IOException
+            throw new IllegalStateException(e);
+        }
+        return codificado.toByteArray();
+    }
+
+    private static LinkedList<String> decodificar(byte[] datos) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(datos));
+        int cantidad = in.readInt();
+        LinkedList<String> lista = new LinkedList<>();
+        for (int i = 0; i < cantidad; i++) {
+            int largo = in.readInt();
+            if (largo < 0 || largo > datos.length) {
+                throw new IOException("Mensaje comprimido con largo inválido");
+            }
+            byte[] bytes = new byte[largo];
+            in.readFully(bytes);
+            lista.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return lista;
+    }
+
+    private static int tamanoEstimado(LinkedList<String> lista) {
+        int total = 0;
+        for (String texto : lista) {
+            total += texto.length();
+        }
+        return total;
+    }
+
+    /**
+     * Libera el Deflater; lo llama el hilo escritor al terminar
+     */
+    public void liberarCompresor() {
+        deflater.end();
+    }
+
+    /**
+     * Libera el Inflater; lo llama el hilo lector al terminar
+     */
+    public void liberarDescompresor() {
+        inflater.end();
+    }
+
+    /**
+     * Resumen de la compresión en todo el servidor
+     */
+    public static String getResumenMetricas() {
+        long originales = BYTES_ORIGINALES.get();
+        long comprimidos = BYTES_COMPRIMIDOS.get();
+        long mensajes = MENSAJES_COMPRIMIDOS.get();
+        return String.format("Compresión: %d mensajes, %d -> %d bytes (relación %.2f), "
+                + "%d descartados, CPU %.3f ms en total\n",
+                mensajes, originales, comprimidos,
+                originales == 0 ? 1.0 : comprimidos / (double) originales,
+                MENSAJES_DESCARTADOS.get(), NANOS_COMPRESION.get() / 1_000_000.0);
+    }
+}
@@ -0,0 +1,178 @@
+package chatservidor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enlace persistente de salida hacia otro nodo del cluster.
+ *
+ * Los mensajes se encolan y se envían en lotes (una lista de mensajes por
+ * escritura). Si la conexión se pierde se reintenta periódicamente; mientras
+ * tanto el nodo se considera fuera del cluster.
+ *
+ * Al conectar se envía un HOLA con el nombre del nodo local, para que el lector
+ * del otro lado sepa de quién son los latidos que recibe. Que la conexión de
+ * salida funcione no prueba que el nodo esté vivo (un proceso colgado sigue
+ * completando conexiones TCP): el cluster lo incorpora recién cuando además
+ * llega su HOLA por la conexión de entrada. Una escritura que no avanza en
+ * el plazo de latidos se corta desde {@link Cluster}.
+ */
+class EnlaceNodo extends Thread {
+
+    private static final int TAMANO_LOTE = 256;
+    private static final int ESPERA_REINTENTO_MS = 2000;
+    static final int INTERVALO_LATIDO_MS = 1000;
+
+    private final String nodo;
+    private final InetSocketAddress direccion;
+    private final Cluster cluster;
+    private static final int LIMITE_PENDIENTES = Integer.getInteger("chat.cluster.limiteCola", 10000);
+
+    private final LinkedBlockingQueue<LinkedList<String>> pendientes = new LinkedBlockingQueue<>(LIMITE_PENDIENTES);
+    private volatile boolean activo = true;
+    private volatile Socket socket;
+    private volatile boolean conectado;
+    private volatile long escribiendoDesde;
+
+    EnlaceNodo(String nodo, InetSocketAddress direccion, Cluster cluster) {
+        this.nodo = nodo;
+        this.direccion = direccion;
+        this.cluster = cluster;
+        setName("enlace-" + nodo);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (activo) {
+            try (Socket s = new Socket()) {
+                s.connect(direccion, ESPERA_REINTENTO_MS);
+                s.setTcpNoDelay(true);
+                socket = s;
+                ObjectOutputStream salida = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                LinkedList<LinkedList<String>> hola = new LinkedList<>();
+                hola.add(new LinkedList<>(Arrays.asList("HOLA", cluster.getNodoLocal())));
+                escribir(salida, hola);
+
+                conectado = true;
+                cluster.enlaceConectado(nodo);
+
+                while (activo || !pendientes.isEmpty()) {
+                    LinkedList<LinkedList<String>> lote = new LinkedList<>();
+                    LinkedList<String> primero = pendientes.poll(INTERVALO_LATIDO_MS, TimeUnit.MILLISECONDS);
+                    if (primero != null) {
+                        lote.add(primero);
+                        pendientes.drainTo(lote, TAMANO_LOTE - 1);
+                    }
+                    // Un lote vacío funciona como latido para detectar nodos caídos
+                    escribir(salida, lote);
+                }
+            } catch (IOException e) {
+                if (conectado) {
+                    conectado = false;
+                    cluster.nodoDesconectado(nodo);
+                }
+            } catch (InterruptedException e) {
+                activo = false;
+            } finally {
+                conectado = false;
+                escribiendoDesde = 0;
+                socket = null;
+            }
+
+            if (activo) {
+                try {
+                    Thread.sleep(ESPERA_REINTENTO_MS);
+                } catch (InterruptedException e) {
+                    activo = false;
+                }
+            }
+        }
+    }
+
+    private void escribir(ObjectOutputStream salida, LinkedList<LinkedList<String>> lote) throws IOException {
+        escribiendoDesde = System.nanoTime();
+        salida.writeObject(lote);
+        salida.flush();
+        salida.reset();
+        escribiendoDesde = 0;
+    }
+
+    /**
+     * Indica si hay una escritura bloqueada hace más de limiteMs (el nodo no
+     * lee lo que se le envía)
+     */
+    boolean escrituraVencida(long limiteMs) {
+        long desde = escribiendoDesde;
+        return desde != 0 && System.nanoTime() - desde > TimeUnit.MILLISECONDS.toNanos(limiteMs);
+    }
+
+    boolean estaConectado() {
+        return conectado;
+    }
+
+    /**
+     * Encola un mensaje para el nodo remoto. Devuelve false si el enlace no
+     * está conectado o la cola está llena: mientras el nodo está caído no se
+     * acumula nada, al reconectar se le vuelve a anunciar el estado actual.
+     */
+    boolean enviar(LinkedList<String> frame) {
+        return conectado && pendientes.offer(frame);
+    }
+
+    /**
+     * Retira los mensajes que no se alcanzaron a enviar (p.ej. al caer el nodo)
+     */
+    List<LinkedList<String>> drenar() {
+        List<LinkedList<String>> restantes = new LinkedList<>();
+        pendientes.drainTo(restantes);
+        return restantes;
+    }
+
+    /**
+     * Detiene el enlace después de intentar vaciar lo pendiente
+     */
+    void cerrar(long esperaMs) {
+        activo = false;
+        try {
+            join(esperaMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar enlace con " + nodo + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Corta la conexión actual para que el enlace vuelva a conectar; lo usa el
+     * cluster cuando deja de recibir latidos del nodo
+     */
+    void reiniciar() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                System.err.println("Error al cerrar enlace con " + nodo + ": " + e.getMessage());
+            }
+        }
+    }
+
+    String getNodo() {
+        return nodo;
+    }
+}
@@ -0,0 +1,534 @@
+package chatservidor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Canal binario para subir y descargar adjuntos (imágenes, archivos) sin pasar
+ * por el protocolo de objetos del chat.
+ *
+ * Escucha en su propio puerto (puerto del chat + 1 por defecto; en cluster un
+ * puerto libre, que se informa en CANAL_ADJUNTOS). Cada conexión realiza una
+ * única operación:
+ * <pre>
+ *   Subida:    'S' + largo (long) + bytes  ->  estado (byte) + clave (64 bytes ASCII)
+ *   Descarga:  'D' + clave (64 bytes ASCII) ->  largo (long, -1 si no existe) + bytes
+ * </pre>
+ * La clave es el SHA-256 del contenido, así un mismo archivo subido varias veces
+ * se guarda una sola vez. Los mensajes del chat solo llevan la referencia
+ * "ADJUNTO:clave".
+ *
+ * Límites (propiedades del sistema, todas opcionales):
+ * <pre>
+ *   chat.adjuntos.inactividad   ms sin progreso antes de cortar una transferencia (30000)
+ *   chat.adjuntos.cola          conexiones esperando un hilo libre (64)
+ *   chat.adjuntos.porCliente    transferencias simultáneas por dirección IP (2)
+ *   chat.adjuntos.cuota         bytes que puede subir una IP por hora (200 MB)
+ *   chat.adjuntos.espacio       tamaño máximo del directorio de adjuntos (2 GB)
+ *   chat.adjuntos.retencion     horas que se conserva un adjunto sin subirse,
+ *                               descargarse ni referenciarse (168)
+ * </pre>
+ * Una tarea periódica corta las transferencias inactivas (así un cliente lento
+ * no retiene un hilo) y otra borra los adjuntos vencidos y temporales huérfanos.
+ *
+ * En cluster los adjuntos no se copian entre nodos: una referencia se valida
+ * en el nodo del emisor y el receptor descarga del suyo, así que
+ * chat.adjuntos.directorio tiene que ser un almacenamiento compartido (p.ej.
+ * un volumen de red) montado en todos los nodos.
+ */
+public class GestorAdjuntos extends Thread {
+
+    public static final String PREFIJO_REFERENCIA = "ADJUNTO:";
+
+    private static final byte OP_SUBIR = 'S';
+    private static final byte OP_DESCARGAR = 'D';
+    private static final byte ESTADO_OK = 0;
+    private static final byte ESTADO_ERROR = 1;
+    private static final int LARGO_CLAVE = 64;
+    private static final int TAMANO_BUFFER = 64 * 1024;
+    // Bloque por llamada a transferTo, para poder registrar el progreso
+    private static final long BLOQUE_TRANSFERENCIA = 1024 * 1024;
+
+    private static final long INACTIVIDAD_MS = Long.getLong("chat.adjuntos.inactividad", 30000L);
+    private static final int POR_CLIENTE = Integer.getInteger("chat.adjuntos.porCliente", 2);
+    private static final long CUOTA_POR_HORA = Long.getLong("chat.adjuntos.cuota", 200L * 1024 * 1024);
+    private static final long ESPACIO_MAXIMO = Long.getLong("chat.adjuntos.espacio", 2L * 1024 * 1024 * 1024);
+    private static final long RETENCION_HORAS = Long.getLong("chat.adjuntos.retencion", 168L);
+    private static final long ESPERA_ERROR_MIN_MS = 10;
+    private static final long ESPERA_ERROR_MAX_MS = 1000;
+
+    private final Servidor server;
+    private volatile int puerto;
+    private final Path directorio;
+    private final long tamanoMaximo;
+    private final ThreadPoolExecutor transferencias;
+    private final ScheduledExecutorService mantenimiento;
+    private final Set<Transferencia> activas = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> transferenciasPorCliente = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> bytesPorCliente = new ConcurrentHashMap<>();
+    private final AtomicLong espacioUsado = new AtomicLong();
+    private ServerSocketChannel serverChannel;
+
+    public GestorAdjuntos(int puerto, Servidor server) {
+        this.server = server;
+        this.puerto = puerto;
+        this.directorio = Paths.get(System.getProperty("chat.adjuntos.directorio", "adjuntos"));
+        this.tamanoMaximo = Long.getLong("chat.adjuntos.maximo", 50L * 1024 * 1024);
+        // Las transferencias corren en su propio pool para no bloquear los hilos del chat;
+        // la cola es acotada y lo que no entra se rechaza
+        int hilos = Integer.getInteger("chat.adjuntos.hilos", 4);
+        this.transferencias = new ThreadPoolExecutor(hilos, hilos, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger("chat.adjuntos.cola", 64)), r -> {
+                    Thread t = new Thread(r, "adjuntos-transferencia");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.mantenimiento = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "adjuntos-mantenimiento");
+            t.setDaemon(true);
+            return t;
+        });
+        setName("adjuntos-aceptador");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            Files.createDirectories(directorio);
+            limpiarDirectorio();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(puerto));
+            // Con puerto 0 el sistema asigna uno libre
+            puerto = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            server.agregarLog("Canal de adjuntos escuchando en puerto: " + puerto);
+
+            long revision = Math.max(1000, INACTIVIDAD_MS / 4);
+            mantenimiento.scheduleWithFixedDelay(this::cortarInactivas, revision, revision, TimeUnit.MILLISECONDS);
+            mantenimiento.scheduleWithFixedDelay(this::limpiarDirectorio, 1, 1, TimeUnit.HOURS);
+            // La cuota por IP se renueva cada hora
+            mantenimiento.scheduleWithFixedDelay(bytesPorCliente::clear, 1, 1, TimeUnit.HOURS);
+        } catch (IOException e) {
+            server.agregarLog("No se pudo abrir el canal de adjuntos: " + e.getMessage());
+            // Sin canal no se anuncia el puerto a los clientes
+            puerto = 0;
+            return;
+        }
+        aceptarConexiones();
+    }
+
+    /**
+     * Bucle de aceptación. Un error en una conexión no cierra el canal: los
+     * errores repetidos (p.ej. sin descriptores libres) se espacian como en
+     * {@link Aceptador}
+     */
+    private void aceptarConexiones() {
+        long espera = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel canal;
+            try {
+                canal = serverChannel.accept();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    break;
+                }
+                espera = espera == 0 ? ESPERA_ERROR_MIN_MS : Math.min(espera * 2, ESPERA_ERROR_MAX_MS);
+                server.agregarLog("Error al aceptar conexión de adjuntos: " + e.getMessage()
+                        + ", reintento en " + espera + " ms");
+                try {
+                    Thread.sleep(espera);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+            espera = 0;
+
+            String direccion;
+            try {
+                direccion = direccionDe(canal.getRemoteAddress());
+            } catch (IOException e) {
+                // La conexión se cerró antes de atenderla
+                cerrarSilencioso(canal);
+                continue;
+            }
+            if (!admitir(direccion)) {
+                cerrarSilencioso(canal);
+                continue;
+            }
+            Transferencia t = new Transferencia(canal, direccion);
+            try {
+                transferencias.execute(() -> atender(t));
+            } catch (RejectedExecutionException e) {
+                // Pool y cola llenos: se rechaza de inmediato
+                terminar(t);
+            }
+        }
+    }
+
+    /**
+     * Atiende una conexión del canal de adjuntos (una operación por conexión)
+     */
+    private void atender(Transferencia t) {
+        // El tiempo de espera en la cola no cuenta como inactividad
+        t.progreso();
+        activas.add(t);
+        try {
+            ByteBuffer cabecera = ByteBuffer.allocate(1);
+            t.leerCompleto(cabecera);
+            byte operacion = cabecera.get(0);
+
+            if (operacion == OP_SUBIR) {
+                recibirAdjunto(t);
+            } else if (operacion == OP_DESCARGAR) {
+                enviarAdjunto(t);
+            } else {
+                server.agregarLog("Operación de adjunto no reconocida desde " + t.direccion);
+            }
+        } catch (IOException e) {
+            server.agregarLog("Error en transferencia de adjunto: " + e.getMessage());
+        } finally {
+            activas.remove(t);
+            terminar(t);
+        }
+    }
+
+    /**
+     * Reserva un lugar de transferencia para una IP, o devuelve false si ya
+     * tiene el máximo en curso
+     */
+    private boolean admitir(String direccion) {
+        boolean[] admitido = new boolean[1];
+        transferenciasPorCliente.compute(direccion, (k, enCurso) -> {
+            int n = enCurso == null ? 0 : enCurso;
+            if (n >= POR_CLIENTE) {
+                return enCurso;
+            }
+            admitido[0] = true;
+            return n + 1;
+        });
+        return admitido[0];
+    }
+
+    private void terminar(Transferencia t) {
+        transferenciasPorCliente.computeIfPresent(t.direccion, (k, enCurso) -> enCurso <= 1 ? null : enCurso - 1);
+        cerrarSilencioso(t.canal);
+    }
+
+    /**
+     * Recibe un adjunto por bloques de tamaño fijo y lo guarda en el directorio
+     * con su hash como nombre
+     */
+    private void recibirAdjunto(Transferencia t) throws IOException {
+        ByteBuffer largoBuffer = ByteBuffer.allocate(Long.BYTES);
+        t.leerCompleto(largoBuffer);
+        long largo = largoBuffer.getLong(0);
+
+        if (largo < 0 || largo > tamanoMaximo) {
+            responderSubida(t, ESTADO_ERROR, null);
+            server.agregarLog("Adjunto rechazado por tamaño: " + largo + " bytes");
+            return;
+        }
+        AtomicLong subidos = bytesPorCliente.computeIfAbsent(t.direccion, k -> new AtomicLong());
+        if (subidos.addAndGet(largo) > CUOTA_POR_HORA) {
+            subidos.addAndGet(-largo);
+            responderSubida(t, ESTADO_ERROR, null);
+            server.agregarLog("Adjunto rechazado por cuota de " + t.direccion);
+            return;
+        }
+        if (espacioUsado.get() + largo > ESPACIO_MAXIMO) {
+            responderSubida(t, ESTADO_ERROR, null);
+            server.agregarLog("Adjunto rechazado: directorio de adjuntos lleno");
+            return;
+        }
+
+        MessageDigest digest = nuevoDigest();
+        Path temporal = Files.createTempFile(directorio, "subida-", ".tmp");
+        try {
+            try (FileChannel archivo = FileChannel.open(temporal, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANO_BUFFER);
+                long restante = largo;
+                while (restante > 0) {
+                    buffer.clear();
+                    if (restante < buffer.capacity()) {
+                        buffer.limit((int) restante);
+                    }
+                    if (t.canal.read(buffer) < 0) {
+                        throw new IOException("Conexión cerrada antes de completar el adjunto");
+                    }
+                    t.progreso();
+                    buffer.flip();
+                    restante -= buffer.remaining();
+
+                    ByteBuffer paraHash = buffer.duplicate();
+                    digest.update(paraHash);
+                    while (buffer.hasRemaining()) {
+                        archivo.write(buffer);
+                    }
+                }
+            }
+
+            String clave = aHex(digest.digest());
+            Path destino = directorio.resolve(clave);
+            if (Files.exists(destino)) {
+                // Contenido duplicado, se reutiliza el archivo existente y se renueva su retención
+                Files.delete(temporal);
+                renovar(destino);
+            } else {
+                Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+                espacioUsado.addAndGet(largo);
+            }
+
+            responderSubida(t, ESTADO_OK, clave);
+            server.agregarLog("Adjunto recibido: " + clave + " (" + largo + " bytes)");
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    /**
+     * Envía un adjunto directamente del archivo al socket con transferTo
+     */
+    private void enviarAdjunto(Transferencia t) throws IOException {
+        ByteBuffer claveBuffer = ByteBuffer.allocate(LARGO_CLAVE);
+        t.leerCompleto(claveBuffer);
+        String clave = new String(claveBuffer.array(), StandardCharsets.US_ASCII);
+
+        Path archivo = esClaveValida(clave) ? directorio.resolve(clave) : null;
+        ByteBuffer largoBuffer = ByteBuffer.allocate(Long.BYTES);
+
+        if (archivo == null || !Files.isRegularFile(archivo)) {
+            largoBuffer.putLong(0, -1L);
+            t.escribirCompleto(largoBuffer);
+            return;
+        }
+
+        try (FileChannel origen = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            long largo = origen.size();
+            largoBuffer.putLong(0, largo);
+            t.escribirCompleto(largoBuffer);
+
+            long posicion = 0;
+            while (posicion < largo) {
+                posicion += origen.transferTo(posicion, Math.min(BLOQUE_TRANSFERENCIA, largo - posicion), t.canal);
+                t.progreso();
+            }
+        }
+        renovar(archivo);
+        server.agregarLog("Adjunto enviado: " + clave);
+    }
+
+    private void responderSubida(Transferencia t, byte estado, String clave) throws IOException {
+        ByteBuffer respuesta = ByteBuffer.allocate(1 + LARGO_CLAVE);
+        respuesta.put(estado);
+        if (clave != null) {
+            respuesta.put(clave.getBytes(StandardCharsets.US_ASCII));
+        }
+        respuesta.position(0);
+        t.escribirCompleto(respuesta);
+    }
+
+    /**
+     * Cierra las transferencias que no avanzan; el hilo bloqueado en la lectura
+     * o escritura recibe una excepción y queda libre
+     */
+    private void cortarInactivas() {
+        long limite = System.currentTimeMillis() - INACTIVIDAD_MS;
+        for (Transferencia t : activas) {
+            if (t.ultimoProgreso < limite) {
+                server.agregarLog("Transferencia de adjunto inactiva desde " + t.direccion + ", se corta");
+                cerrarSilencioso(t.canal);
+            }
+        }
+    }
+
+    /**
+     * Borra adjuntos sin uso más antiguos que la retención y temporales de
+     * subidas interrumpidas, y recalcula el espacio usado
+     */
+    private void limpiarDirectorio() {
+        long ahora = System.currentTimeMillis();
+        long vencimiento = ahora - TimeUnit.HOURS.toMillis(RETENCION_HORAS);
+        long vencimientoTemporal = ahora - TimeUnit.HOURS.toMillis(1);
+        long total = 0;
+        int borrados = 0;
+
+        try (Stream<Path> archivos = Files.list(directorio)) {
+            for (Path archivo : (Iterable<Path>) archivos::iterator) {
+                long modificado = Files.getLastModifiedTime(archivo).toMillis();
+                boolean temporal = archivo.getFileName().toString().endsWith(".tmp");
+                if (modificado < (temporal ? vencimientoTemporal : vencimiento)) {
+                    Files.deleteIfExists(archivo);
+                    borrados++;
+                } else if (!temporal) {
+                    total += Files.size(archivo);
+                }
+            }
+        } catch (IOException e) {
+            server.agregarLog("Error al limpiar el directorio de adjuntos: " + e.getMessage());
+            return;
+        }
+
+        espacioUsado.set(total);
+        if (borrados > 0) {
+            server.agregarLog("Adjuntos vencidos borrados: " + borrados);
+        }
+    }
+
+    /**
+     * Verifica si un adjunto referenciado existe en el servidor
+     */
+    public boolean existeAdjunto(String clave) {
+        if (!esClaveValida(clave)) {
+            return false;
+        }
+        Path archivo = directorio.resolve(clave);
+        if (!Files.isRegularFile(archivo)) {
+            return false;
+        }
+        // Una referencia nueva en un mensaje también cuenta como uso
+        renovar(archivo);
+        return true;
+    }
+
+    /**
+     * Renueva la retención de un adjunto: la limpieza borra por fecha de
+     * modificación, que se actualiza en cada subida repetida, descarga o
+     * referencia
+     */
+    private void renovar(Path archivo) {
+        try {
+            Files.setLastModifiedTime(archivo, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            server.agregarLog("No se pudo renovar la retención de " + archivo.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Puerto del canal; vale 0 si el canal no está abierto (todavía no abrió
+     * con puerto automático, o no se pudo abrir)
+     */
+    public int getPuerto() {
+        return puerto;
+    }
+
+    /**
+     * Cierra el canal de adjuntos y detiene las transferencias pendientes
+     */
+    public void cerrar() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el canal de adjuntos: " + e.getMessage());
+        }
+        mantenimiento.shutdownNow();
+        transferencias.shutdownNow();
+    }
+
+    private static boolean esClaveValida(String clave) {
+        if (clave == null || clave.length() != LARGO_CLAVE) {
+            return false;
+        }
+        for (int i = 0; i < clave.length(); i++) {
+            if (Character.digit(clave.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String direccionDe(SocketAddress direccion) {
+        return direccion instanceof InetSocketAddress
+                ? ((InetSocketAddress) direccion).getAddress().getHostAddress()
+                : String.valueOf(direccion);
+    }
+
+    private static void cerrarSilencioso(SocketChannel canal) {
+        try {
+            canal.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el canal de adjunto: " + e.getMessage());
+        }
+    }
+
+    private static MessageDigest nuevoDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    private static String aHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Conexión en curso del canal de adjuntos, con el instante de su último
+     * progreso para detectar clientes inactivos
+     */
+    private static class Transferencia {
+
+        private final SocketChannel canal;
+        private final String direccion;
+        private volatile long ultimoProgreso = System.currentTimeMillis();
+
+        Transferencia(SocketChannel canal, String direccion) {
+            this.canal = canal;
+            this.direccion = direccion;
+        }
+
+        void progreso() {
+            ultimoProgreso = System.currentTimeMillis();
+        }
+
+        void leerCompleto(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (canal.read(buffer) < 0) {
+                    throw new IOException("Conexión cerrada por el cliente");
+                }
+                progreso();
+            }
+        }
+
+        void escribirCompleto(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                canal.write(buffer);
+                progreso();
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package chatservidor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Salas de chat grupales.
+ *
+ * Mantiene el índice sala -> miembros. Los conjuntos de miembros son
+ * concurrentes, así que difundir un mensaje los recorre sin bloquear a
+ * quienes entran o salen de la sala al mismo tiempo. Las altas y bajas pasan
+ * por compute sobre el índice para que borrar una sala vacía no compita con
+ * quien entra. En modo cluster cada sala vive en el nodo propietario de su
+ * nombre y los comandos se reenvían a él; cuando el anillo cambia, las salas
+ * que pasan a otro nodo se le transfieren con sus miembros.
+ *
+ * Comandos:
+ * <pre>
+ *   CREAR_SALA    sala usuario
+ *   UNIRSE_SALA   sala usuario
+ *   SALIR_SALA    sala usuario
+ *   MENSAJE_GRUPO sala emisor mensaje [timestamp]
+ * </pre>
+ */
+public class GestorSalas {
+
+    private final Servidor server;
+    private final Map<String, Set<String>> salas = new ConcurrentHashMap<>();
+
+    public GestorSalas(Servidor server) {
+        this.server = server;
+    }
+
+    /**
+     * Ejecuta un comando de sala, reenviándolo al nodo propietario si la sala
+     * no vive en este nodo
+     */
+    public void procesarComando(LinkedList<String> comando, int saltos) {
+        if (comando.size() < 3) {
+            return;
+        }
+        String sala = comando.get(1);
+
+        Cluster cluster = server.getCluster();
+        if (cluster != null && saltos < Cluster.MAX_SALTOS) {
+            String propietario = cluster.propietario(sala);
+            if (!cluster.esLocal(propietario)) {
+                cluster.reenviarComandoSala(propietario, comando, saltos + 1);
+                return;
+            }
+        }
+
+        String usuario = comando.get(2);
+        switch (comando.get(0)) {
+            case "CREAR_SALA": {
+                boolean[] nueva = new boolean[1];
+                salas.compute(sala, (k, miembros) -> {
+                    if (miembros == null) {
+                        miembros = ConcurrentHashMap.newKeySet();
+                        nueva[0] = true;
+                    }
+                    miembros.add(usuario);
+                    return miembros;
+                });
+                boolean creada = nueva[0];
+                responder(usuario, creada ? "SALA_CREADA" : "SALA_EXISTENTE", sala);
+                if (creada) {
+                    server.agregarLog("Sala " + sala + " creada por " + usuario);
+                }
+                break;
+            }
+
+            case "UNIRSE_SALA": {
+                Set<String> miembros = salas.computeIfPresent(sala, (k, m) -> {
+                    m.add(usuario);
+                    return m;
+                });
+                responder(usuario, miembros == null ? "SALA_NO_EXISTE" : "UNIDO_A_SALA", sala);
+                break;
+            }
+
+            case "SALIR_SALA": {
+                // Quitar y borrar la sala vacía en un solo paso, así una
+                // UNIRSE_SALA simultánea no queda en un conjunto huérfano
+                salas.computeIfPresent(sala, (k, miembros) -> {
+                    miembros.remove(usuario);
+                    return miembros.isEmpty() ? null : miembros;
+                });
+                responder(usuario, "SALIO_DE_SALA", sala);
+                break;
+            }
+
+            case "MENSAJE_GRUPO":
+                if (comando.size() >= 4) {
+                    String timestamp = comando.size() > 4 ? comando.get(4) : String.valueOf(System.currentTimeMillis());
+                    difundir(sala, usuario, comando.get(3), timestamp);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Envía un mensaje a todos los miembros de una sala. El mensaje se arma una
+     * sola vez y la misma instancia se encola para cada destinatario; los
+     * miembros de otros nodos se agrupan en un único reenvío por nodo.
+     */
+    private void difundir(String sala, String emisor, String mensaje, String timestamp) {
+        Set<String> miembros = salas.get(sala);
+        if (miembros == null || !miembros.contains(emisor)) {
+            responder(emisor, "SALA_NO_EXISTE", sala);
+            return;
+        }
+
+        LinkedList<String> frame = new LinkedList<>();
+        frame.add("MENSAJE_GRUPO");
+        frame.add(sala);
+        frame.add(emisor);
+        frame.add(mensaje);
+        frame.add(timestamp);
+
+        Cluster cluster = server.getCluster();
+        Map<String, List<String>> remotosPorNodo = new HashMap<>();
+        int enLinea = 0;
+        int offline = 0;
+
+        for (String miembro : miembros) {
+            if (miembro.equals(emisor)) {
+                continue;
+            }
+            HiloCliente cliente = server.buscarCliente(miembro);
+            if (cliente != null) {
+                cliente.enviarMensaje(frame);
+                enLinea++;
+                continue;
+            }
+
+            String nodo = cluster != null ? cluster.destinoDe(miembro) : null;
+            if (nodo != null) {
+                remotosPorNodo.computeIfAbsent(nodo, k -> new LinkedList<>()).add(miembro);
+            } else {
+                server.almacenarFrameOffline(miembro, frame);
+                offline++;
+            }
+        }
+
+        remotosPorNodo.forEach((nodo, receptores) -> cluster.difundir(nodo, receptores, frame));
+        server.agregarLog("Mensaje de " + emisor + " a sala " + sala + ": " + enLinea
+                + " en línea, " + offline + " offline, " + remotosPorNodo.size() + " nodos remotos");
+    }
+
+    /**
+     * Transfiere a su nuevo propietario las salas que ya no le corresponden a
+     * este nodo, p.ej. al entrar o salir un nodo del cluster
+     */
+    void rebalancear() {
+        Cluster cluster = server.getCluster();
+        if (cluster == null) {
+            return;
+        }
+
+        int movidas = 0;
+        // Sobre una copia: una sala que no se pudo enviar vuelve al índice
+        for (String sala : new ArrayList<>(salas.keySet())) {
+            String propietario = cluster.propietario(sala);
+            if (!cluster.esLocal(propietario)) {
+                Set<String> miembros = salas.remove(sala);
+                if (miembros != null) {
+                    cluster.enviarSala(propietario, sala, miembros);
+                    movidas++;
+                }
+            }
+        }
+        if (movidas > 0) {
+            server.agregarLog("Rebalanceo del cluster: " + movidas + " salas transferidas");
+        }
+    }
+
+    /**
+     * Recibe los miembros de una sala transferida desde otro nodo, uniéndolos
+     * con los que ya tenga aquí
+     */
+    void recibirSala(String sala, List<String> miembros) {
+        salas.compute(sala, (k, actuales) -> {
+            Set<String> conjunto = actuales != null ? actuales : ConcurrentHashMap.newKeySet();
+            conjunto.addAll(miembros);
+            return conjunto;
+        });
+    }
+
+    private void responder(String usuario, String tipo, String sala) {
+        LinkedList<String> respuesta = new LinkedList<>();
+        respuesta.add(tipo);
+        respuesta.add(sala);
+        server.enrutarFrame(usuario, respuesta, 0);
+    }
+
+    public int getCantidadSalas() {
+        return salas.size();
+    }
+}
@@ -6,6 +6,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * HiloCliente para manejar múltiples funcionalidades tipo WhatsApp
@@ -20,23 +21,38 @@ public class HiloCliente extends Thread {
     private boolean escuchando;
     private long ultimaActividad;
     private String estado; // "online", "offline", "ocupado", etc.
+    private final ColaSalida colaSalida;
+    private final Thread escritor;
+    private final CompresorFrames compresor;
+    private final long aceptado;
+    private boolean handshakePendiente = true;
 
     public HiloCliente(Socket socket, Servidor server) {
         this.server = server;
         this.socket = socket;
         this.ultimaActividad = System.currentTimeMillis();
         this.estado = "online";
-
-        try {
-            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-            objectInputStream = new ObjectInputStream(socket.getInputStream());
-        } catch (IOException ex) {
-            System.err.println("Error en la inicialización de streams: " + ex.getMessage());
-        }
+        this.colaSalida = new ColaSalida();
+        this.compresor = new CompresorFrames();
+        this.escritor = new Thread(this::escribirPendientes, "escritor-" + socket.getRemoteSocketAddress());
+        this.escritor.setDaemon(true);
+        this.aceptado = System.nanoTime();
+        // Los streams se crean en run(): el constructor de ObjectInputStream
+        // bloquea hasta recibir la cabecera del cliente
     }
 
     public void desconnectar() {
+        desconnectar(500);
+    }
+
+    /**
+     * Cierra la cola de salida y el socket, esperando hasta esperaMs a que el
+     * escritor vacíe lo pendiente (p.ej. SERVIDOR_CERRANDO)
+     */
+    void desconnectar(long esperaMs) {
         try {
+            cerrarSalida();
+            esperarSalida(esperaMs);
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -48,9 +64,35 @@ public class HiloCliente extends Thread {
         }
     }
 
+    /**
+     * Cierra la cola de salida; lo ya encolado se sigue escribiendo
+     */
+    void cerrarSalida() {
+        colaSalida.cerrar();
+    }
+
+    /**
+     * Espera hasta esperaMs a que el escritor termine de vaciar la cola
+     */
+    void esperarSalida(long esperaMs) {
+        if (esperaMs > 0 && escritor.isAlive() && Thread.currentThread() != escritor
+                && !colaSalida.estaVacia()) {
+            try {
+                escritor.join(esperaMs);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public void run() {
         try {
+            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            objectInputStream = new ObjectInputStream(socket.getInputStream());
+            escritor.start();
+            server.agregarLog("Nueva conexión desde: " + socket.getInetAddress());
+
             Object initialAux = objectInputStream.readObject();
             if (initialAux instanceof LinkedList) {
                 LinkedList<String> initialList = (LinkedList<String>) initialAux;
@@ -58,9 +100,7 @@ public class HiloCliente extends Thread {
                     this.identificador = initialList.get(1); // Asigna el ID del cliente
 
                     // Esto asegura que el servidor lo reconoce como conectado antes de cualquier otra operación
-                    synchronized (server.getClientes()) {
-                        server.getClientes().add(this);
-                    }
+                    server.registrarCliente(this);
 
                     server.agregarLog("Cliente " + this.identificador + " conectado y registrado.");
 
@@ -74,6 +114,10 @@ public class HiloCliente extends Thread {
                             .forEach(respuestaConexion::add);
                     enviarMensaje(respuestaConexion);
 
+                    // Handshake completo: se quita el timeout y se libera el lugar en el aceptador
+                    socket.setSoTimeout(0);
+                    terminarHandshake(true);
+
                     // Entregar mensajes offline (ya que el cliente está confirmado y en la lista)
                     server.entregarMensajesOffline(this.identificador, this);
 
@@ -87,14 +131,15 @@ public class HiloCliente extends Thread {
                                 .filter(cliente -> !cliente.equals(this)) // No enviarse a sí mismo
                                 .forEach(cliente -> cliente.enviarMensaje(nuevoUsuarioNotificacion));
                     }
+                    server.publicarPresencia(this.identificador, true);
 
                     // entrar en el bucle principal de escucha para mensajes de chat regulares
                     escuchando = true;
                     while (escuchando) {
-                        Object nextAux = objectInputStream.readObject();
-                        if (nextAux instanceof LinkedList) {
+                        LinkedList<String> siguiente = leerLista(objectInputStream.readObject());
+                        if (siguiente != null) {
                             ultimaActividad = System.currentTimeMillis();
-                            ejecutar((LinkedList<String>) nextAux);
+                            ejecutar(siguiente);
                         }
                     }
 
@@ -118,25 +163,57 @@ public class HiloCliente extends Thread {
             e.printStackTrace();
         } finally {
             if (identificador != null) {
-                synchronized (server.getClientes()) {
-                    server.getClientes().remove(this);
-                }
+                server.eliminarCliente(this);
                 server.notificarCambioEstado(identificador, "USUARIO_DESCONECTADO"); // Notifica a los demás
+                server.publicarPresencia(identificador, false);
                 server.agregarLog("Cliente " + identificador + " desconectado y eliminado.");
             }
             // Cerrar streams y socket (método desconnectar)
             desconnectar();
+            compresor.liberarDescompresor();
+            if (escritor.getState() == Thread.State.NEW) {
+                // Falló la creación de los streams: el escritor, que libera el
+                // Deflater al terminar, nunca arrancó
+                compresor.liberarCompresor();
+            }
+            terminarHandshake(false);
+            server.getAceptador().conexionCerrada();
+        }
+    }
+
+    /**
+     * Libera el lugar de handshake en el aceptador (una sola vez por cliente)
+     */
+    private void terminarHandshake(boolean completado) {
+        if (handshakePendiente) {
+            handshakePendiente = false;
+            server.getAceptador().finHandshake(completado ? System.nanoTime() - aceptado : 0);
         }
     }
 
+    /**
+     * Convierte lo recibido del cliente en una lista de comandos; los mensajes
+     * comprimidos llegan como byte[]
+     */
+    @SuppressWarnings("unchecked")
+    private LinkedList<String> leerLista(Object aux) throws IOException {
+        if (aux instanceof LinkedList) {
+            return (LinkedList<String>) aux;
+        }
+        if (aux instanceof byte[] && compresor.aceptaComprimidos()) {
+            return compresor.descomprimir((byte[]) aux);
+        }
+        return null;
+    }
+
     public void escuchar() {
         escuchando = true;
         while (escuchando) {
             try {
-                Object aux = objectInputStream.readObject();
-                if (aux instanceof LinkedList) {
+                LinkedList<String> aux = leerLista(objectInputStream.readObject());
+                if (aux != null) {
                     ultimaActividad = System.currentTimeMillis();
-                    ejecutar((LinkedList<String>) aux);
+                    ejecutar(aux);
                 }
             } catch (Exception e) {
                 if (escuchando) {
@@ -171,6 +248,9 @@ public class HiloCliente extends Thread {
                 break;
 
             case "MENSAJE":
+                if (Trazador.ACTIVO) {
+                    Trazador.iniciar(System.nanoTime());
+                }
                 if (lista.size() >= 4) {
                     String emisor = lista.get(1);
                     String receptor = lista.get(2);
@@ -179,6 +259,7 @@ public class HiloCliente extends Thread {
 
                     manejarMensaje(emisor, receptor, mensaje, timestamp);
                 }
+                Trazador.terminar();
                 break;
 
             case "AGREGAR_CONTACTO":
@@ -199,6 +280,21 @@ public class HiloCliente extends Thread {
                 }
                 break;
 
+            case "CREAR_SALA":
+            case "UNIRSE_SALA":
+            case "SALIR_SALA":
+            case "MENSAJE_GRUPO":
+                server.getSalas().procesarComando(lista, 0);
+                break;
+
+            case "SOLICITAR_COMPRESION":
+                activarCompresion(lista.size() > 1 && "DICCIONARIO".equals(lista.get(1)));
+                break;
+
+            case "SOLICITAR_CANAL_ADJUNTOS":
+                enviarCanalAdjuntos();
+                break;
+
             case "PING":
                 // Responder al ping para mantener conexión activa
                 LinkedList<String> pong = new LinkedList<>();
@@ -216,8 +312,24 @@ public class HiloCliente extends Thread {
      * Maneja el envío de mensajes entre usuarios
      */
     private void manejarMensaje(String emisor, String receptor, String mensaje, String timestamp) {
+        Trazador.marcar(Trazador.Etapa.MANEJO);
+        Trazador.describir(emisor, receptor);
         server.agregarLog("Mensaje de " + emisor + " para " + receptor + ": " + mensaje);
 
+        // Los adjuntos viajan por su propio canal, aquí solo se valida la referencia
+        if (mensaje.startsWith(GestorAdjuntos.PREFIJO_REFERENCIA)) {
+            String clave = mensaje.substring(GestorAdjuntos.PREFIJO_REFERENCIA.length());
+            GestorAdjuntos adjuntos = server.getAdjuntos();
+            if (adjuntos == null || !adjuntos.existeAdjunto(clave)) {
+                LinkedList<String> noEncontrado = new LinkedList<>();
+                noEncontrado.add("ADJUNTO_NO_ENCONTRADO");
+                noEncontrado.add(receptor);
+                noEncontrado.add(clave);
+                enviarMensaje(noEncontrado);
+                return;
+            }
+        }
+
         boolean entregado = server.enviarMensajeAUsuario(emisor, receptor, mensaje, timestamp);
 
         if (!entregado) {
@@ -234,6 +346,7 @@ public class HiloCliente extends Thread {
      * Confirma la conexión de un nuevo cliente
      */
     private void confirmarConexion(String identificador) {
+        String anterior = this.identificador;
         Servidor.correlativo++;
         this.identificador = Servidor.correlativo + " - " + identificador;
 
@@ -259,8 +372,12 @@ public class HiloCliente extends Thread {
                     .filter(cliente -> !cliente.equals(this))
                     .forEach(cliente -> cliente.enviarMensaje(nuevoUsuario));
 
-            server.getClientes().add(this);
+            server.registrarCliente(this, anterior);
+        }
+        if (anterior != null) {
+            server.publicarPresencia(anterior, false);
         }
+        server.publicarPresencia(this.identificador, true);
     }
 
     /**
@@ -291,6 +408,39 @@ public class HiloCliente extends Thread {
         enviarMensaje(usuariosOnline);
     }
 
+    /**
+     * Activa la compresión de mensajes grandes para este cliente
+     */
+    private void activarCompresion(boolean conDiccionario) {
+        // La salida se comprime recién cuando el escritor envía la confirmación
+        compresor.aceptarComprimidos();
+
+        LinkedList<String> aceptada = new LinkedList<>();
+        aceptada.add("COMPRESION_ACEPTADA");
+        aceptada.add(String.valueOf(CompresorFrames.getUmbral()));
+        aceptada.add(String.valueOf(conDiccionario));
+        enviarMensaje(aceptada);
+
+        server.agregarLog("Compresión activada para " + identificador
+                + (conDiccionario ? " (con diccionario)" : ""));
+    }
+
+    /**
+     * Informa al cliente el puerto del canal de adjuntos
+     */
+    private void enviarCanalAdjuntos() {
+        GestorAdjuntos adjuntos = server.getAdjuntos();
+        if (adjuntos == null || adjuntos.getPuerto() == 0) {
+            return;
+        }
+
+        LinkedList<String> canal = new LinkedList<>();
+        canal.add("CANAL_ADJUNTOS");
+        canal.add(String.valueOf(adjuntos.getPuerto()));
+
+        enviarMensaje(canal);
+    }
+
     /**
      * Cambia el estado del usuario
      */
@@ -312,20 +462,117 @@ public class HiloCliente extends Thread {
     }
 
     /**
-     * Envía un mensaje al cliente a través del socket
+     * Encola un mensaje para el cliente con la prioridad que corresponde a su tipo
      */
     public void enviarMensaje(LinkedList<String> lista) {
+        enviarMensaje(lista, ColaSalida.clasificar(lista));
+    }
+
+    /**
+     * Encola un mensaje para el cliente con una prioridad explícita
+     */
+    public void enviarMensaje(LinkedList<String> lista, ColaSalida.Clase clase) {
+        enviarMensaje(lista, clase, null);
+    }
+
+    /**
+     * Encola un mensaje cuya traza se completa cuando se escribe en el socket
+     */
+    void enviarMensaje(LinkedList<String> lista, Trazador.Traza traza) {
+        enviarMensaje(lista, ColaSalida.clasificar(lista), traza);
+    }
+
+    private void enviarMensaje(LinkedList<String> lista, ColaSalida.Clase clase, Trazador.Traza traza) {
+        if (!colaSalida.encolar(lista, clase, traza) && !socket.isClosed()) {
+            server.agregarLog("No se pudo encolar mensaje para cliente "
+                    + (identificador != null ? identificador : "desconocido")
+                    + " (cola llena o cerrada), se desconecta.");
+            escuchando = false;
+            colaSalida.cerrar();
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                System.err.println("Error al cerrar el socket: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Bucle del hilo escritor: saca mensajes de la cola por prioridad y los
+     * escribe en el socket
+     */
+    private void escribirPendientes() {
+        String noEscrita = null;
+        try {
+            ColaSalida.Pendiente pendiente;
+            while ((pendiente = colaSalida.tomar()) != null) {
+                // Se agrupan escrituras: solo se hace flush al vaciar la cola o en mensajes de control
+                boolean flush = pendiente.getClase() == ColaSalida.Clase.CONTROL || colaSalida.estaVacia();
+                if (!escribirFrame(pendiente.getLista(), flush)) {
+                    noEscrita = pendiente.getEntradaBuzon();
+                    break;
+                }
+                pendiente.registrarEscrito();
+                if ("COMPRESION_ACEPTADA".equals(pendiente.getLista().getFirst())) {
+                    compresor.activar(Boolean.parseBoolean(pendiente.getLista().get(2)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            compresor.liberarCompresor();
+            devolverBuzon(noEscrita);
+        }
+    }
+
+    /**
+     * Pasa a la cola de salida las entradas del buzón offline del usuario; si
+     * la conexión ya se está cerrando vuelven al buzón
+     */
+    void entregarBuzon(String usuario, List<String> entradas) {
+        if (!colaSalida.agregarBuzon(entradas, e -> server.convertirEntradaOffline(usuario, e))) {
+            server.devolverAlBuzon(usuario, entradas, this);
+        }
+    }
+
+    /**
+     * Devuelve al buzón las entradas offline que el escritor no llegó a
+     * escribir, empezando por la que falló
+     */
+    private void devolverBuzon(String noEscrita) {
+        // Con la cola cerrada entregarBuzon ya no agrega entradas nuevas
+        colaSalida.cerrar();
+        List<String> restantes = colaSalida.retirarBuzon();
+        if (noEscrita != null) {
+            restantes.add(0, noEscrita);
+        }
+        if (!restantes.isEmpty() && identificador != null) {
+            server.devolverAlBuzon(identificador, restantes, this);
+        }
+    }
+
+    /**
+     * Escribe un mensaje en el socket, comprimido si el cliente lo negoció y
+     * el mensaje supera el umbral
+     */
+    private boolean escribirFrame(LinkedList<String> lista, boolean flush) {
         try {
             if (objectOutputStream != null && !socket.isClosed()) {
-                objectOutputStream.writeObject(lista);
-                objectOutputStream.flush();
+                byte[] comprimido = compresor.comprimir(lista);
+                objectOutputStream.writeObject(comprimido != null ? comprimido : lista);
+                if (flush) {
+                    objectOutputStream.flush();
+                }
+                return true;
             }
         } catch (Exception e) {
             server.agregarLog("Error al enviar mensaje a cliente "
                     + (identificador != null ? identificador : "desconocido")
                     + ": " + e.getMessage());
             escuchando = false;
+            colaSalida.cerrar();
         }
+        return false;
     }
 
     /**
@@ -340,15 +587,14 @@ public class HiloCliente extends Thread {
             server.agregarLog("El cliente \"" + identificador + "\" se ha desconectado.");
 
             // Remover de la lista de clientes
-            synchronized (server.getClientes()) {
-                server.getClientes().remove(this);
-            }
+            server.eliminarCliente(this);
 
             // Notificar a otros clientes
             synchronized (server.getClientes()) {
                 server.getClientes().stream()
                         .forEach(h -> h.enviarMensaje(usuarioDesconectado));
             }
+            server.publicarPresencia(identificador, false);
         }
 
         desconnectar();
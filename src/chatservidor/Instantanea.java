@@ -0,0 +1,267 @@
+package chatservidor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guarda periódicamente en disco los contactos, apodos y última actividad de
+ * los usuarios, y los recupera al reiniciar el servidor.
+ *
+ * Las listas de contactos se reemplazan en lugar de modificarse (copy-on-write),
+ * así que la instantánea recorre los mapas concurrentes sin bloquear el ruteo.
+ * Si no hubo cambios desde la última instantánea no se escribe nada, y nunca
+ * se escribe antes de terminar la carga: así una carga a medias no pisa el
+ * archivo bueno. Un archivo que no se puede leer se aparta como ".corrupto".
+ *
+ * Formato (binario, big endian):
+ * <pre>
+ *   int MAGICO, int VERSION
+ *   contactos:  { texto usuario, int n, n x texto contacto } ... , int -1
+ *   apodos:     { texto usuario, texto apodo } ... , int -1
+ *   actividad:  { texto usuario, long milisegundos } ... , int -1
+ * </pre>
+ * donde cada texto es un int con el largo seguido de los bytes en UTF-8.
+ */
+public class Instantanea {
+
+    private static final int MAGICO = 0x43484154; // "CHAT"
+    private static final int VERSION = 1;
+    private static final int FIN_SECCION = -1;
+    private static final long ESPERA_CIERRE_SEGUNDOS = 10;
+
+    private final Servidor server;
+    private final Path archivo;
+    private final long intervaloSegundos;
+    private final AtomicLong cambios = new AtomicLong();
+    private long cambiosGuardados = -1;
+    private volatile boolean cargaTerminada;
+    private ScheduledExecutorService programador;
+
+    /**
+     * Por defecto el archivo lleva el nombre del nodo del cluster o, sin
+     * cluster, el puerto, para que varias instancias en la misma máquina no
+     * compartan la instantánea
+     */
+    public Instantanea(Servidor server, String puerto) {
+        this.server = server;
+        String sufijo = System.getProperty("chat.cluster.nodo", puerto);
+        this.archivo = Paths.get(System.getProperty("chat.instantanea.archivo",
+                "estado-servidor-" + sufijo + ".bin"));
+        this.intervaloSegundos = Long.getLong("chat.instantanea.intervalo", 60L);
+    }
+
+    /**
+     * Carga la instantánea anterior en segundo plano y programa las siguientes
+     */
+    public void iniciar() {
+        programador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "instantanea");
+            t.setDaemon(true);
+            return t;
+        });
+        // La carga corre en el mismo hilo, antes de la primera instantánea
+        programador.execute(this::cargar);
+        programador.scheduleWithFixedDelay(this::guardarSiHayCambios,
+                intervaloSegundos, intervaloSegundos, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Avisa que cambió alguno de los datos que se guardan
+     */
+    public void marcarCambio() {
+        cambios.incrementAndGet();
+    }
+
+    private void guardarSiHayCambios() {
+        try {
+            guardar();
+        } catch (IOException e) {
+            server.agregarLog("Error al guardar la instantánea: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Escribe la instantánea en un archivo temporal y lo renombra al terminar,
+     * así un corte a mitad de escritura no daña la instantánea anterior
+     */
+    public synchronized void guardar() throws IOException {
+        long version = cambios.get();
+        if (version == cambiosGuardados) {
+            return;
+        }
+        if (!cargaTerminada) {
+            server.agregarLog("La instantánea anterior no terminó de cargarse, no se guarda");
+            return;
+        }
+
+        long inicio = System.nanoTime();
+        int usuarios = 0;
+        Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temporal.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+            out.writeInt(MAGICO);
+            out.writeInt(VERSION);
+
+            for (Map.Entry<String, LinkedList<String>> e : server.getContactosPorUsuario().entrySet()) {
+                LinkedList<String> contactos = e.getValue();
+                escribirTexto(out, e.getKey());
+                out.writeInt(contactos.size());
+                for (String contacto : contactos) {
+                    escribirTexto(out, contacto);
+                }
+                usuarios++;
+            }
+            out.writeInt(FIN_SECCION);
+
+            for (Map.Entry<String, String> e : server.getNicknames().entrySet()) {
+                escribirTexto(out, e.getKey());
+                escribirTexto(out, e.getValue());
+            }
+            out.writeInt(FIN_SECCION);
+
+            for (Map.Entry<String, Long> e : server.getUltimaActividad().entrySet()) {
+                escribirTexto(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(FIN_SECCION);
+
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cambiosGuardados = version;
+
+        server.agregarLog(String.format("Instantánea guardada: %d usuarios con contactos, %d bytes, %.1f ms",
+                usuarios, Files.size(archivo), (System.nanoTime() - inicio) / 1_000_000.0));
+    }
+
+    /**
+     * Lee la instantánea mapeando el archivo en memoria. Los datos que ya se
+     * hayan modificado desde que arrancó el servidor tienen prioridad.
+     */
+    private void cargar() {
+        if (!Files.isRegularFile(archivo)) {
+            cargaTerminada = true;
+            return;
+        }
+
+        long inicio = System.nanoTime();
+        int usuarios = 0;
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            if (buffer.getInt() != MAGICO || buffer.getInt() != VERSION) {
+                server.agregarLog("Instantánea con formato desconocido: " + archivo);
+                apartar();
+                return;
+            }
+
+            Map<String, LinkedList<String>> contactosPorUsuario = server.getContactosPorUsuario();
+            String usuario;
+            while ((usuario = leerTexto(buffer)) != null) {
+                int cantidad = buffer.getInt();
+                LinkedList<String> contactos = new LinkedList<>();
+                for (int i = 0; i < cantidad; i++) {
+                    contactos.add(leerTexto(buffer));
+                }
+                contactosPorUsuario.merge(usuario, contactos, Instantanea::unir);
+                usuarios++;
+            }
+
+            Map<String, String> nicknames = server.getNicknames();
+            while ((usuario = leerTexto(buffer)) != null) {
+                nicknames.putIfAbsent(usuario, leerTexto(buffer));
+            }
+
+            Map<String, Long> ultimaActividad = server.getUltimaActividad();
+            while ((usuario = leerTexto(buffer)) != null) {
+                ultimaActividad.merge(usuario, buffer.getLong(), Math::max);
+            }
+        } catch (IOException | RuntimeException e) {
+            server.agregarLog("Error al cargar la instantánea: " + e.getMessage());
+            apartar();
+            return;
+        }
+        cargaTerminada = true;
+
+        server.agregarLog(String.format("Instantánea cargada: %d usuarios con contactos en %.1f ms",
+                usuarios, (System.nanoTime() - inicio) / 1_000_000.0));
+    }
+
+    /**
+     * Aparta un archivo que no se pudo cargar para que la próxima instantánea
+     * no lo reemplace. Si no se puede apartar no se vuelve a guardar.
+     */
+    private void apartar() {
+        Path corrupto = archivo.resolveSibling(archivo.getFileName() + ".corrupto");
+        try {
+            Files.move(archivo, corrupto, StandardCopyOption.REPLACE_EXISTING);
+            server.agregarLog("Instantánea ilegible guardada como " + corrupto);
+            cargaTerminada = true;
+        } catch (IOException e) {
+            server.agregarLog("No se pudo apartar la instantánea ilegible, no se guardará: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Une los contactos cargados con los agregados desde el arranque, sin
+     * modificar ninguna de las dos listas
+     */
+    private static LinkedList<String> unir(LinkedList<String> actuales, LinkedList<String> cargados) {
+        LinkedHashSet<String> union = new LinkedHashSet<>(cargados);
+        union.addAll(actuales);
+        return new LinkedList<>(union);
+    }
+
+    /**
+     * Detiene el programador, espera a que termine una carga o instantánea en
+     * curso y guarda una última instantánea
+     */
+    public void detener() {
+        if (programador != null) {
+            // shutdown (no shutdownNow): interrumpir la carga cerraría el canal
+            // mapeado y el archivo se tomaría como ilegible
+            programador.shutdown();
+            try {
+                if (!programador.awaitTermination(ESPERA_CIERRE_SEGUNDOS, TimeUnit.SECONDS)) {
+                    server.agregarLog("La instantánea en curso no terminó a tiempo");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        guardarSiHayCambios();
+    }
+
+    private static void escribirTexto(DataOutputStream out, String texto) throws IOException {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String leerTexto(MappedByteBuffer buffer) {
+        int largo = buffer.getInt();
+        if (largo == FIN_SECCION) {
+            return null;
+        }
+        byte[] bytes = new byte[largo];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,49 @@
+package chatservidor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acumula muestras de latencia (en nanosegundos) de forma segura entre hilos
+ */
+public class MetricasLatencia {
+
+    private final String nombre;
+    private final AtomicLong muestras = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maximoNanos = new AtomicLong();
+
+    public MetricasLatencia(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /**
+     * Registra una muestra de latencia
+     */
+    public void registrar(long nanos) {
+        muestras.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long maximo = maximoNanos.get();
+        while (nanos > maximo && !maximoNanos.compareAndSet(maximo, nanos)) {
+            maximo = maximoNanos.get();
+        }
+    }
+
+    public long getMuestras() {
+        return muestras.get();
+    }
+
+    public double getPromedioMs() {
+        long n = muestras.get();
+        return n == 0 ? 0 : totalNanos.get() / (double) n / 1_000_000;
+    }
+
+    public double getMaximoMs() {
+        return maximoNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d muestras, promedio %.3f ms, máximo %.3f ms",
+                nombre, getMuestras(), getPromedioMs(), getMaximoMs());
+    }
+}
@@ -1,13 +1,14 @@
 package chatservidor;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JOptionPane;
 
 /**
@@ -15,30 +16,45 @@ import javax.swing.JOptionPane;
  * 
  */
 public class Servidor extends Thread {
-    private ServerSocket serverSocket;
+    private Aceptador aceptador;
 
     private List<HiloCliente> clientes; 
+    private final Map<String, HiloCliente> clientesPorId;
     private final VentanaS ventana;
     private final String puerto;
     static int correlativo;
     
+    // Marca las entradas del buzón que corresponden a mensajes de sala
+    private static final String PREFIJO_GRUPO = "MENSAJE_GRUPO|";
+    // Tiempo total que se espera a que los escritores vacíen sus colas al cerrar
+    private static final long ESPERA_CIERRE_MS = 500;
+    
     
     private Map<String, LinkedList<String>> mensajesOffline; 
     private Map<String, LinkedList<String>> contactosPorUsuario; 
     private Map<String, Long> ultimaActividad; 
     private Map<String, String> nicknames; 
     
+    private GestorAdjuntos adjuntos;
+    private Cluster cluster;
+    private final GestorSalas salas;
+    private final Instantanea instantanea;
+    private final AtomicBoolean cerrado = new AtomicBoolean();
+    
     public Servidor(String puerto, VentanaS ventana) {
         correlativo = 0;
         this.puerto = puerto;
         this.ventana = ventana;
         this.clientes = Collections.synchronizedList(new LinkedList<>()); 
+        this.clientesPorId = new ConcurrentHashMap<>();
+        this.salas = new GestorSalas(this);
         
         // Inicializar estructuras de datos (thread-safe)
         this.mensajesOffline = new ConcurrentHashMap<>();
         this.contactosPorUsuario = new ConcurrentHashMap<>();
         this.ultimaActividad = new ConcurrentHashMap<>();
         this.nicknames = new ConcurrentHashMap<>();
+        this.instantanea = new Instantanea(this, puerto);
         
         this.start();
     }
@@ -46,18 +62,39 @@ public class Servidor extends Thread {
     @Override
     public void run() {
         try {
-            serverSocket = new ServerSocket(Integer.valueOf(puerto));
+            aceptador = new Aceptador(Integer.valueOf(puerto), this);
+            aceptador.abrir();
             ventana.addServidorIniciado();
             agregarLog("Servidor iniciado en puerto: " + puerto);
             
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Nueva conexión entrante: " + socket);
-                agregarLog("Nueva conexión desde: " + socket.getInetAddress());
-                
-                HiloCliente h = new HiloCliente(socket, this);
-                h.start();
+            // El estado guardado se carga en segundo plano, el puerto ya está abierto
+            instantanea.iniciar();
+            
+            // La ventana cierra con System.exit: el cierre ordenado (y la última
+            // instantánea) corre en un shutdown hook
+            Runtime.getRuntime().addShutdownHook(new Thread(this::cerrarServidor, "cierre-servidor"));
+            
+            // Canal separado para adjuntos, en el puerto siguiente por defecto. En
+            // cluster el puerto siguiente puede ser el chat de otro nodo de la
+            // misma máquina: se usa uno libre, que el cliente pide con
+            // SOLICITAR_CANAL_ADJUNTOS
+            boolean enCluster = System.getProperty("chat.cluster.nodo") != null;
+            adjuntos = new GestorAdjuntos(Integer.getInteger("chat.adjuntos.puerto",
+                    enCluster ? 0 : Integer.valueOf(puerto) + 1), this);
+            if (enCluster && System.getProperty("chat.adjuntos.directorio") == null) {
+                agregarLog("Aviso: en cluster chat.adjuntos.directorio debe apuntar a un "
+                        + "almacenamiento compartido por todos los nodos");
             }
+            adjuntos.start();
+            
+            // Modo cluster opcional, configurado con -Dchat.cluster.*
+            cluster = Cluster.desdeConfiguracion(this);
+            if (cluster != null) {
+                cluster.iniciar();
+            }
+            
+            // El handshake de cada cliente corre en su propio hilo, no en el aceptador
+            aceptador.aceptar();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(ventana, "El servidor no se ha podido iniciar,\n"
                     + "puede que haya ingresado un puerto incorrecto.\n"
@@ -78,6 +115,9 @@ public class Servidor extends Thread {
                 }
             });
         }
+        if (cluster != null) {
+            usuariosConectados.addAll(cluster.getUsuariosRemotos());
+        }
         return usuariosConectados;
     }
     
@@ -85,87 +125,279 @@ public class Servidor extends Thread {
      * Método para manejar mensajes offline
      */
     public void almacenarMensajeOffline(String emisor, String receptor, String mensaje, String timestamp) {
-        if (!mensajesOffline.containsKey(receptor)) {
-            mensajesOffline.put(receptor, new LinkedList<>());
-        }
-        
         String mensajeCompleto = emisor + "|" + mensaje + "|" + timestamp;
-        mensajesOffline.get(receptor).add(mensajeCompleto);
+        agregarAlBuzon(receptor, Collections.singletonList(mensajeCompleto), false);
         
         agregarLog("Mensaje offline almacenado para " + receptor + " de " + emisor);
     }
     
     /**
-     * Entrega mensajes offline cuando un usuario se conecta
+     * Entrega mensajes offline cuando un usuario se conecta. Las entradas pasan
+     * a la cola del cliente sin convertir y se convierten a medida que se
+     * escriben; las que no lleguen a escribirse vuelven al buzón.
      */
     public void entregarMensajesOffline(String usuario, HiloCliente cliente) {
-        if (mensajesOffline.containsKey(usuario)) {
-            LinkedList<String> mensajes = mensajesOffline.get(usuario);
+        LinkedList<String> mensajes = mensajesOffline.remove(usuario);
+        if (mensajes != null) {
+            LinkedList<String> entradas = mensajes;
+            // El historial offline es tráfico masivo, no debe retrasar PONG ni presencia
+            cliente.entregarBuzon(usuario, entradas);
             
-            for (String mensajeCompleto : mensajes) {
-                String[] partes = mensajeCompleto.split("\\|", 3);
-                if (partes.length == 3) {
-                    String emisor = partes[0];
-                    String mensaje = partes[1];
-                    String timestamp = partes[2];
-                    
-                    LinkedList<String> lista = new LinkedList<>();
-                    lista.add("MENSAJE");
-                    lista.add(emisor);
-                    lista.add(usuario);
-                    lista.add(mensaje);
-                    lista.add(timestamp);
-                    
-                    cliente.enviarMensaje(lista);
-                }
+            agregarLog("Entregando " + entradas.size() + " mensajes offline a " + usuario);
+        }
+    }
+    
+    /**
+     * Convierte una entrada del buzón en el mensaje que recibe el cliente, o
+     * null si la entrada no tiene el formato esperado
+     */
+    LinkedList<String> convertirEntradaOffline(String usuario, String mensajeCompleto) {
+        if (mensajeCompleto.startsWith(PREFIJO_GRUPO)) {
+            return convertirEntradaGrupoOffline(mensajeCompleto);
+        }
+        String[] partes = mensajeCompleto.split("\\|", 3);
+        if (partes.length != 3) {
+            return null;
+        }
+        LinkedList<String> lista = new LinkedList<>();
+        lista.add("MENSAJE");
+        lista.add(partes[0]);
+        lista.add(usuario);
+        lista.add(partes[1]);
+        lista.add(partes[2]);
+        return lista;
+    }
+    
+    /**
+     * Devuelve al principio del buzón las entradas que un cliente no llegó a
+     * recibir. Si el usuario ya volvió a conectarse en otra conexión se le
+     * entregan ahí.
+     */
+    void devolverAlBuzon(String usuario, List<String> entradas, HiloCliente origen) {
+        agregarAlBuzon(usuario, entradas, true);
+        agregarLog("Devueltos " + entradas.size() + " mensajes offline al buzón de " + usuario);
+        
+        HiloCliente actual = buscarCliente(usuario);
+        if (actual != null && actual != origen && actual.estaConectado()) {
+            entregarMensajesOffline(usuario, actual);
+        }
+    }
+    
+    /**
+     * Guarda en el buzón de un miembro un mensaje de sala
+     */
+    public void almacenarMensajeGrupoOffline(String sala, String emisor, String receptor, String mensaje, String timestamp) {
+        // El mensaje va al final porque puede contener el separador
+        String mensajeCompleto = PREFIJO_GRUPO + sala + "|" + emisor + "|" + timestamp + "|" + mensaje;
+        agregarAlBuzon(receptor, Collections.singletonList(mensajeCompleto), false);
+    }
+    
+    /**
+     * Agrega entradas al buzón de un usuario dentro de compute: un remove()
+     * concurrente (entrega, rebalanceo o traspaso a otro nodo) ocurre antes o
+     * después, nunca deja una lista huérfana donde se pierda la entrada. Las
+     * listas solo se modifican aquí, quien las retira del mapa las usa sin lock.
+     */
+    private void agregarAlBuzon(String usuario, List<String> entradas, boolean alPrincipio) {
+        mensajesOffline.compute(usuario, (k, buzon) -> {
+            LinkedList<String> lista = buzon != null ? buzon : new LinkedList<>();
+            if (alPrincipio) {
+                lista.addAll(0, entradas);
+            } else {
+                lista.addAll(entradas);
             }
-            
-            mensajesOffline.remove(usuario);
-            agregarLog("Entregados " + mensajes.size() + " mensajes offline a " + usuario);
+            return lista;
+        });
+    }
+    
+    private LinkedList<String> convertirEntradaGrupoOffline(String mensajeCompleto) {
+        String[] partes = mensajeCompleto.substring(PREFIJO_GRUPO.length()).split("\\|", 4);
+        if (partes.length != 4) {
+            return null;
         }
+        LinkedList<String> lista = new LinkedList<>();
+        lista.add("MENSAJE_GRUPO");
+        lista.add(partes[0]);
+        lista.add(partes[1]);
+        lista.add(partes[3]);
+        lista.add(partes[2]);
+        return lista;
     }
     
     /**
-     * Busca un cliente por su identificador
+     * Registra un cliente ya identificado en la lista y en el índice por identificador
      */
-    public HiloCliente buscarCliente(String identificador) {
+    public void registrarCliente(HiloCliente cliente) {
+        registrarCliente(cliente, null);
+    }
+    
+    /**
+     * Registra un cliente que cambió de identificador: quita la entrada del
+     * índice bajo el identificador anterior y no lo duplica en la lista
+     */
+    public void registrarCliente(HiloCliente cliente, String identificadorAnterior) {
+        synchronized (clientes) {
+            // Solo un re-registro puede encontrarlo ya en la lista
+            if (identificadorAnterior == null || !clientes.contains(cliente)) {
+                clientes.add(cliente);
+            }
+        }
+        if (identificadorAnterior != null && !identificadorAnterior.equals(cliente.getIdentificador())) {
+            clientesPorId.remove(identificadorAnterior, cliente);
+        }
+        if (cliente.getIdentificador() != null) {
+            clientesPorId.put(cliente.getIdentificador(), cliente);
+        }
+    }
+    
+    /**
+     * Elimina un cliente de la lista y del índice por identificador
+     */
+    public void eliminarCliente(HiloCliente cliente) {
         synchronized (clientes) {
-            return clientes.stream()
-                    .filter(h -> identificador.equals(h.getIdentificador()))
-                    .findFirst()
-                    .orElse(null);
+            clientes.remove(cliente);
+        }
+        if (cliente.getIdentificador() != null) {
+            clientesPorId.remove(cliente.getIdentificador(), cliente);
         }
     }
     
     /**
-     * Verifica si un usuario está conectado
+     * Busca un cliente por su identificador
+     */
+    public HiloCliente buscarCliente(String identificador) {
+        return clientesPorId.get(identificador);
+    }
+    
+    /**
+     * Verifica si un usuario está conectado (en este nodo o en otro del cluster)
      */
     public boolean estaConectado(String identificador) {
-        return buscarCliente(identificador) != null;
+        return buscarCliente(identificador) != null
+                || (cluster != null && cluster.nodoDeUsuario(identificador) != null);
     }
     
     /**
      * Envía un mensaje a un usuario específico (conectado o desconectado)
      */
     public boolean enviarMensajeAUsuario(String emisor, String receptor, String mensaje, String timestamp) {
-        HiloCliente clienteReceptor = buscarCliente(receptor);
+        Trazador.marcar(Trazador.Etapa.RUTEO);
+        LinkedList<String> lista = new LinkedList<>();
+        lista.add("MENSAJE");
+        lista.add(emisor);
+        lista.add(receptor);
+        lista.add(mensaje);
+        lista.add(timestamp);
         
-        if (clienteReceptor != null) {
-            // Usuario está conectado, enviar mensaje inmediatamente
-            LinkedList<String> lista = new LinkedList<>();
-            lista.add("MENSAJE");
-            lista.add(emisor);
-            lista.add(receptor);
-            lista.add(mensaje);
-            lista.add(timestamp);
-            
-            clienteReceptor.enviarMensaje(lista);
+        boolean entregado = enrutarFrame(receptor, lista, 0);
+        if (entregado) {
             agregarLog("Mensaje enviado de " + emisor + " a " + receptor);
+        }
+        return entregado;
+    }
+    
+    /**
+     * Entrega un mensaje al receptor si está conectado aquí, lo reenvía al nodo
+     * donde esté conectado, o lo deja en su buzón (local o del nodo propietario).
+     * Devuelve true si el receptor está en línea.
+     */
+    boolean enrutarFrame(String receptor, LinkedList<String> frame, int saltos) {
+        HiloCliente clienteReceptor = buscarCliente(receptor);
+        Trazador.marcar(Trazador.Etapa.BUSQUEDA);
+        if (clienteReceptor != null) {
+            Trazador.marcar(Trazador.Etapa.ENCOLADO);
+            // La traza (si la hay) la completa el escritor del receptor
+            clienteReceptor.enviarMensaje(frame, Trazador.tomar());
             return true;
-        } else {
-            // Usuario está desconectado, almacenar mensaje
-            almacenarMensajeOffline(emisor, receptor, mensaje, timestamp);
-            return false;
+        }
+        
+        // Fuera del camino local ENCOLADO se marca después de reenviar o guardar,
+        // para que la traza incluya ese costo. El límite de saltos evita que un
+        // mensaje rebote entre nodos con anillos desfasados
+        if (cluster != null && saltos < Cluster.MAX_SALTOS) {
+            String nodo = cluster.nodoDeUsuario(receptor);
+            if (nodo != null) {
+                cluster.reenviar(nodo, receptor, frame, saltos + 1);
+                Trazador.marcar(Trazador.Etapa.ENCOLADO);
+                return true;
+            }
+            String propietario = cluster.propietario(receptor);
+            if (!cluster.esLocal(propietario)) {
+                cluster.reenviar(propietario, receptor, frame, saltos + 1);
+                Trazador.marcar(Trazador.Etapa.ENCOLADO);
+                return false;
+            }
+        }
+        
+        almacenarFrameOffline(receptor, frame);
+        Trazador.marcar(Trazador.Etapa.ENCOLADO);
+        return false;
+    }
+    
+    /**
+     * Guarda en el buzón del receptor un mensaje ya armado
+     */
+    void almacenarFrameOffline(String receptor, LinkedList<String> frame) {
+        if (frame.size() < 5) {
+            return;
+        }
+        if ("MENSAJE".equals(frame.get(0))) {
+            almacenarMensajeOffline(frame.get(1), receptor, frame.get(3), frame.get(4));
+        } else if ("MENSAJE_GRUPO".equals(frame.get(0))) {
+            almacenarMensajeGrupoOffline(frame.get(1), frame.get(2), receptor, frame.get(3), frame.get(4));
+        }
+    }
+    
+    /**
+     * Recibe el buzón de un usuario transferido desde otro nodo
+     */
+    void recibirBuzon(String usuario, LinkedList<String> entradas) {
+        agregarAlBuzon(usuario, entradas, false);
+        
+        HiloCliente cliente = buscarCliente(usuario);
+        if (cliente != null) {
+            entregarMensajesOffline(usuario, cliente);
+        }
+    }
+    
+    /**
+     * Mueve los buzones que ya no pertenecen a este nodo a su nuevo propietario
+     * (o al nodo donde el usuario está conectado)
+     */
+    void rebalancearBuzones() {
+        if (cluster == null) {
+            return;
+        }
+        
+        int movidos = 0;
+        // Sobre una copia: un buzón que no se pudo enviar vuelve al mapa
+        for (String usuario : new ArrayList<>(mensajesOffline.keySet())) {
+            if (buscarCliente(usuario) != null) {
+                continue;
+            }
+            String destino = cluster.nodoDeUsuario(usuario);
+            if (destino == null) {
+                destino = cluster.propietario(usuario);
+            }
+            if (!cluster.esLocal(destino)) {
+                LinkedList<String> buzon = mensajesOffline.remove(usuario);
+                if (buzon != null) {
+                    cluster.enviarBuzon(destino, usuario, buzon);
+                    movidos++;
+                }
+            }
+        }
+        if (movidos > 0) {
+            agregarLog("Rebalanceo del cluster: " + movidos + " buzones transferidos");
+        }
+    }
+    
+    /**
+     * Anuncia al resto del cluster la conexión o desconexión de un usuario local
+     */
+    public void publicarPresencia(String usuario, boolean conectado) {
+        if (cluster != null) {
+            cluster.publicarPresencia(usuario, conectado);
         }
     }
     
@@ -183,19 +415,28 @@ public class Servidor extends Thread {
         
         // Actualizar última actividad
         ultimaActividad.put(usuario, System.currentTimeMillis());
+        instantanea.marcarCambio();
     }
     
     /**
      * Agregar contacto a la lista de un usuario
      */
     public void agregarContactoAUsuario(String usuario, String contacto) {
-        if (!contactosPorUsuario.containsKey(usuario)) {
-            contactosPorUsuario.put(usuario, new LinkedList<>());
-        }
+        // Se reemplaza la lista en lugar de modificarla, para que la instantánea
+        // pueda recorrerla sin bloqueos
+        boolean[] agregado = new boolean[1];
+        contactosPorUsuario.compute(usuario, (k, contactos) -> {
+            if (contactos != null && contactos.contains(contacto)) {
+                return contactos;
+            }
+            LinkedList<String> nuevos = contactos != null ? new LinkedList<>(contactos) : new LinkedList<>();
+            nuevos.add(contacto);
+            agregado[0] = true;
+            return nuevos;
+        });
         
-        LinkedList<String> contactos = contactosPorUsuario.get(usuario);
-        if (!contactos.contains(contacto)) {
-            contactos.add(contacto);
+        if (agregado[0]) {
+            instantanea.marcarCambio();
             agregarLog("Contacto " + contacto + " agregado a " + usuario);
         }
     }
@@ -224,6 +465,7 @@ public class Servidor extends Thread {
         stats.append("Usuarios conectados: ").append(clientes.size()).append("\n");
         stats.append("Mensajes offline almacenados: ").append(mensajesOffline.size()).append("\n");
         stats.append("Total de usuarios registrados: ").append(nicknames.size()).append("\n");
+        stats.append("Salas activas: ").append(salas.getCantidadSalas()).append("\n");
         
         stats.append("\nUsuarios conectados:\n");
         synchronized (clientes) {
@@ -234,6 +476,19 @@ public class Servidor extends Thread {
             }
         }
         
+        if (aceptador != null) {
+            stats.append("\n").append(aceptador.getResumenMetricas());
+        }
+        
+        stats.append("\nLatencia de salida por prioridad:\n");
+        stats.append(ColaSalida.getResumenMetricas());
+        stats.append(CompresorFrames.getResumenMetricas());
+        
+        if (Trazador.ACTIVO) {
+            stats.append("\nTrazas más lentas:\n");
+            stats.append(Trazador.masLentas(10));
+        }
+        
         return stats.toString();
     }
     
@@ -241,21 +496,45 @@ public class Servidor extends Thread {
      * Cierra el servidor de forma segura
      */
     public void cerrarServidor() {
+        if (!cerrado.compareAndSet(false, true)) {
+            return;
+        }
         try {
             // Notifica a todos los clientes que el servidor se cierra
             LinkedList<String> mensaje = new LinkedList<>();
             mensaje.add("SERVIDOR_CERRANDO");
             
+            List<HiloCliente> cerrando;
             synchronized (clientes) {
-                for (HiloCliente cliente : clientes) {
-                    cliente.enviarMensaje(mensaje);
-                    cliente.desconnectar();
-                }
+                cerrando = new ArrayList<>(clientes);
                 clientes.clear();
             }
+            clientesPorId.clear();
+            
+            // Primero se cierran todas las colas y después se espera a los
+            // escritores con un plazo común, fuera del lock de la lista
+            for (HiloCliente cliente : cerrando) {
+                cliente.enviarMensaje(mensaje);
+                cliente.cerrarSalida();
+            }
+            long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ESPERA_CIERRE_MS);
+            for (HiloCliente cliente : cerrando) {
+                cliente.esperarSalida(TimeUnit.NANOSECONDS.toMillis(limite - System.nanoTime()));
+                cliente.desconnectar(0);
+            }
+            
+            if (cluster != null) {
+                cluster.salir();
+            }
+            
+            instantanea.detener();
+            
+            if (aceptador != null) {
+                aceptador.cerrar();
+            }
             
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            if (adjuntos != null) {
+                adjuntos.cerrar();
             }
             
             agregarLog("Servidor cerrado correctamente");
@@ -277,6 +556,35 @@ public class Servidor extends Thread {
         return ultimaActividad;
     }
     
+    public Map<String, String> getNicknames() {
+        return nicknames;
+    }
+    
+    public Aceptador getAceptador() {
+        return aceptador;
+    }
+    
+    public GestorAdjuntos getAdjuntos() {
+        return adjuntos;
+    }
+    
+    public GestorSalas getSalas() {
+        return salas;
+    }
+    
+    public Cluster getCluster() {
+        return cluster;
+    }
+    
+    /**
+     * Copia de los clientes conectados a este nodo
+     */
+    public List<HiloCliente> getClientesLocales() {
+        synchronized (clientes) {
+            return new LinkedList<>(clientes);
+        }
+    }
+    
     public List<HiloCliente> getClientes() {
         return clientes;
     }
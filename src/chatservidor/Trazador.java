@@ -0,0 +1,186 @@
+package chatservidor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Trazas muestreadas del recorrido de un MENSAJE por el servidor.
+ *
+ * Para una fracción de los mensajes (-Dchat.traza.muestreo=0.01 traza el 1%)
+ * se anota el instante en que pasa por cada etapa, desde que se lee del socket
+ * del emisor hasta que se escribe en el socket del receptor. Las trazas
+ * terminadas se guardan en un buffer circular de tamaño fijo, que se vuelca
+ * desde el menú contextual del log del servidor (clic derecho).
+ *
+ * Con el muestreo en 0 (por defecto) {@link #ACTIVO} es una constante falsa y
+ * todas las llamadas se reducen a una comparación que el JIT elimina.
+ */
+public final class Trazador {
+
+    public enum Etapa {
+        RECIBIDO, MANEJO, RUTEO, BUSQUEDA, ENCOLADO, ESCRITO
+    }
+
+    private static final double MUESTREO = Double.parseDouble(System.getProperty("chat.traza.muestreo", "0"));
+    public static final boolean ACTIVO = MUESTREO > 0;
+
+    private static final int CAPACIDAD = Integer.getInteger("chat.traza.capacidad", 1024);
+    private static final AtomicReferenceArray<Traza> TRAZAS = new AtomicReferenceArray<>(ACTIVO ? CAPACIDAD : 0);
+    private static final AtomicLong SIGUIENTE = new AtomicLong();
+    private static final ThreadLocal<Traza> ACTUAL = new ThreadLocal<>();
+
+    private Trazador() {
+    }
+
+    /**
+     * Decide si se traza el mensaje que se acaba de recibir en este hilo
+     */
+    public static void iniciar(long recibido) {
+        if (ACTIVO && ThreadLocalRandom.current().nextDouble() < MUESTREO) {
+            Traza traza = new Traza();
+            traza.marcas[Etapa.RECIBIDO.ordinal()] = recibido;
+            ACTUAL.set(traza);
+        }
+    }
+
+    /**
+     * Anota una etapa en la traza del hilo actual, si la hay
+     */
+    public static void marcar(Etapa etapa) {
+        if (ACTIVO) {
+            Traza traza = ACTUAL.get();
+            if (traza != null) {
+                traza.marcar(etapa);
+            }
+        }
+    }
+
+    /**
+     * Anota emisor y receptor en la traza actual. El texto se arma solo si el
+     * mensaje se está trazando, así sin muestreo no se crea ningún String
+     */
+    public static void describir(String emisor, String receptor) {
+        if (ACTIVO) {
+            Traza traza = ACTUAL.get();
+            if (traza != null) {
+                traza.descripcion = emisor + " -> " + receptor;
+            }
+        }
+    }
+
+    /**
+     * Retira la traza del hilo actual para que la complete otro hilo (el
+     * escritor del receptor)
+     */
+    public static Traza tomar() {
+        if (!ACTIVO) {
+            return null;
+        }
+        Traza traza = ACTUAL.get();
+        ACTUAL.remove();
+        return traza;
+    }
+
+    /**
+     * Termina la traza del hilo actual, si todavía la tiene
+     */
+    public static void terminar() {
+        if (ACTIVO) {
+            Traza traza = tomar();
+            if (traza != null) {
+                traza.terminar();
+            }
+        }
+    }
+
+    /**
+     * Todas las trazas guardadas, de la más antigua a la más reciente
+     */
+    public static List<Traza> getTrazas() {
+        List<Traza> lista = new ArrayList<>();
+        long fin = SIGUIENTE.get();
+        for (long i = Math.max(0, fin - CAPACIDAD); i < fin; i++) {
+            Traza traza = TRAZAS.get((int) (i % CAPACIDAD));
+            if (traza != null) {
+                lista.add(traza);
+            }
+        }
+        return lista;
+    }
+
+    /**
+     * Volcado de todas las trazas guardadas
+     */
+    public static String volcar() {
+        StringBuilder sb = new StringBuilder();
+        getTrazas().forEach(t -> sb.append(t).append("\n"));
+        return sb.toString();
+    }
+
+    /**
+     * Las n trazas más lentas del buffer
+     */
+    public static String masLentas(int n) {
+        StringBuilder sb = new StringBuilder();
+        getTrazas().stream()
+                .sorted(Comparator.comparingLong(Traza::getTotalNanos).reversed())
+                .limit(n)
+                .forEach(t -> sb.append(t).append("\n"));
+        return sb.toString();
+    }
+
+    /**
+     * Recorrido de un mensaje; las etapas que no ocurrieron quedan en 0
+     */
+    public static class Traza {
+
+        private final long[] marcas = new long[Etapa.values().length];
+        private volatile String descripcion = "";
+        private volatile long fin;
+
+        void marcar(Etapa etapa) {
+            marcas[etapa.ordinal()] = System.nanoTime();
+        }
+
+        /**
+         * Anota la escritura en el socket del receptor y termina la traza
+         */
+        void escrito() {
+            marcar(Etapa.ESCRITO);
+            terminar();
+        }
+
+        void terminar() {
+            fin = System.nanoTime();
+            TRAZAS.set((int) (SIGUIENTE.getAndIncrement() % CAPACIDAD), this);
+        }
+
+        public long getTotalNanos() {
+            return fin - marcas[Etapa.RECIBIDO.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%.3f ms [%s]", getTotalNanos() / 1_000_000.0, descripcion));
+            long anterior = marcas[Etapa.RECIBIDO.ordinal()];
+            for (Etapa etapa : Etapa.values()) {
+                long marca = marcas[etapa.ordinal()];
+                if (etapa != Etapa.RECIBIDO && marca != 0) {
+                    sb.append(String.format(" %s +%d us", etapa, (marca - anterior) / 1000));
+                    anterior = marca;
+                }
+            }
+            // Sin escritura (receptor offline o en otro nodo) el último tramo
+            // va hasta el fin: p.ej. el aviso de no entregado al emisor
+            if (marcas[Etapa.ESCRITO.ordinal()] == 0 && fin > anterior) {
+                sb.append(String.format(" FIN +%d us", (fin - anterior) / 1000));
+            }
+            return sb.toString();
+        }
+    }
+}
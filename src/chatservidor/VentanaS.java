@@ -3,8 +3,10 @@ package chatservidor;
 import java.awt.GridLayout;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
 import javax.swing.JTextField;
 
 /**
@@ -23,6 +25,26 @@ public class VentanaS extends javax.swing.JFrame {
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         String puerto=getPuerto();
         servidor=new Servidor(puerto, this);
+        agregarMenuAdministracion();
+    }
+
+    /**
+     * Menú contextual del log (clic derecho) para volcar en el log las
+     * estadísticas del servidor y las trazas guardadas.
+     */
+    private void agregarMenuAdministracion() {
+        JMenuItem estadisticas = new JMenuItem("Ver estadísticas");
+        estadisticas.addActionListener(e -> agregarLog(servidor.getEstadisticas()));
+
+        JMenuItem trazas = new JMenuItem("Volcar trazas");
+        trazas.addActionListener(e -> agregarLog(Trazador.ACTIVO
+                ? "=== TRAZAS ===\n" + Trazador.volcar()
+                : "Trazas desactivadas (iniciar con -Dchat.traza.muestreo=0.01)"));
+
+        JPopupMenu menu = new JPopupMenu();
+        menu.add(estadisticas);
+        menu.add(trazas);
+        txtClientes.setComponentPopupMenu(menu);
     }
 
     /**